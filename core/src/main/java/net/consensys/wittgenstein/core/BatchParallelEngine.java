@@ -0,0 +1,324 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import net.consensys.wittgenstein.core.messages.Message;
+
+/**
+ * Executes the message deliveries on multiple threads, with the same results as the sequential
+ * execution. It's batch parallelism, not a parallel discrete-event simulation: the nodes are not
+ * partitioned between the threads and have no clock of their own. The time advances for all the
+ * nodes together, millisecond by millisecond.
+ *
+ * <p>The deliveries of a millisecond are a batch: they are grouped by destination node, and the
+ * groups are executed concurrently. What the nodes do on the network (sending messages, registering
+ * tasks...) is not executed immediately but recorded, and replayed in the sequential order later:
+ * so the random generator is used in the same order and the envelopes are added in the same order.
+ * Only the statistics of the sender are updated immediately, as they belong to the node sending.
+ *
+ * <p>The replay is delayed until the end of a window given by the minimum latency between two nodes
+ * (the 'lookahead'): a message sent during a window cannot arrive in the same window, so the
+ * batches of the following milliseconds can be executed before the replay. The lookahead only saves
+ * replays: the batches are still executed one after another. The window is closed earlier if a node
+ * does something that may have an impact during the window, like sending a message to itself or
+ * registering a task, or if a conditional task can start or a timer is due.
+ *
+ * <p>This works only if the messages and tasks modify the state of the node receiving them, and
+ * nothing else. They must not use Network#rd either (it throws an exception if they do). So only
+ * the messages and nodes implementing NodeLocalAction are executed in parallel. The other
+ * deliveries are executed sequentially, once what was recorded before them has been replayed.
+ */
+final class BatchParallelEngine<TN extends Node> {
+  /** Below this number of deliveries, it's faster to execute them on a single thread. */
+  private static final int MIN_PARALLEL_BATCH = 64;
+
+  private final Network<TN> network;
+  private final int threads;
+  private final ForkJoinPool pool;
+
+  /** The delivery being executed by the current thread. */
+  private final ThreadLocal<Delivery<TN>> current = new ThreadLocal<>();
+
+  /** All the deliveries of the window, in the sequential order. */
+  private final List<Delivery<TN>> window = new ArrayList<>();
+
+  private final List<List<Delivery<TN>>> byThread = new ArrayList<>();
+
+  /** True while the deliveries are executed. Nothing can change the network during this time. */
+  boolean inPhase = false;
+
+  /** Nothing sent during the window can arrive before this time. */
+  private int windowEnd;
+
+  private int nodeCount = -1;
+  private int minExtraLatency;
+
+  static final class Delivery<TN extends Node> {
+    final int time;
+    final TN from;
+    final TN to;
+    final Message<TN> message;
+    final int count;
+    final int size;
+    List<Runnable> ops;
+    boolean closeWindow;
+
+    /** The envelope to add back at the end of the replay, if it has other destinations. */
+    Envelope<?> next;
+
+    Delivery(int time, TN from, TN to, Message<TN> message, int count, int size) {
+      this.time = time;
+      this.from = from;
+      this.to = to;
+      this.message = message;
+      this.count = count;
+      this.size = size;
+    }
+  }
+
+  BatchParallelEngine(Network<TN> network, int threads) {
+    if (threads < 2) {
+      throw new IllegalArgumentException("threads=" + threads);
+    }
+    this.network = network;
+    this.threads = threads;
+    this.pool = new ForkJoinPool(threads);
+    for (int i = 0; i < threads; i++) {
+      byThread.add(new ArrayList<>());
+    }
+  }
+
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Called instead of executing an operation on the network. The operation is kept for the replay
+   * if we're executing a delivery.
+   *
+   * @param firstEvent - the time of the first event this operation can add.
+   * @return false if the operation must be executed immediately.
+   */
+  boolean defer(Runnable op, int firstEvent) {
+    if (!inPhase) {
+      return false;
+    }
+    Delivery<TN> d = current.get();
+    if (d == null) {
+      throw new IllegalStateException("The network can't be used by other threads");
+    }
+    if (firstEvent <= d.time) {
+      throw new IllegalStateException(
+          "Can't add an event at the current time in parallel, time="
+              + d.time
+              + ", event="
+              + firstEvent);
+    }
+    if (firstEvent < windowEnd) {
+      d.closeWindow = true;
+    }
+    if (d.ops == null) {
+      d.ops = new ArrayList<>(2);
+    }
+    d.ops.add(op);
+    return true;
+  }
+
+  /**
+   * Executes all the deliveries we can before the end of the window, starting with 'first', an
+   * envelope already polled at the current time.
+   */
+  void runWindow(Envelope<?> first, int until) {
+    int lookahead = Math.max(1, network.networkLatency.getMinLatency() + 2 * minExtraLatency());
+    windowEnd = (int) Math.min(Integer.MAX_VALUE, (long) network.time + 1 + lookahead);
+
+    Envelope<?> m = first;
+    int lastBatch = network.time;
+    boolean closeWindow = false;
+    while (m != null) {
+      lastBatch = network.time;
+      closeWindow = runBatch(m);
+
+      m = null;
+      while (!closeWindow && m == null) {
+        int next = network.msgs.nextArrivalTime(network.time + 1);
+        if (next >= windowEnd
+            || next > until
+            || network.conditionalTasks.nextStartTime() <= next
+            || network.timers.nextDue() <= next) {
+          break;
+        }
+        network.time = next;
+        m = network.msgs.poll(next);
+      }
+    }
+
+    // The sequential loop continues from the last millisecond with deliveries, so the tasks are
+    //  checked exactly as they would have been.
+    network.time = lastBatch;
+    replay();
+  }
+
+  /** @return the minimum extra latency of the nodes, 0 if there is no negative extra latency. */
+  private int minExtraLatency() {
+    if (nodeCount != network.allNodes.size()) {
+      nodeCount = network.allNodes.size();
+      minExtraLatency = 0;
+      for (TN n : network.allNodes) {
+        if (n != null) {
+          minExtraLatency = Math.min(minExtraLatency, n.extraLatency);
+        }
+      }
+    }
+    return minExtraLatency;
+  }
+
+  /**
+   * Executes all the deliveries of the current time, in parallel if they are NodeLocalAction.
+   *
+   * @return true if the window must be closed after these deliveries.
+   */
+  @SuppressWarnings("unchecked")
+  private boolean runBatch(Envelope<?> m) {
+    int time = network.time;
+    int segment = window.size();
+    while (m != null) {
+      TN from = network.allNodes.get(m.getFromId());
+      TN to = network.allNodes.get(m.getNextDestId());
+      Message<TN> mc = (Message<TN>) m.getMessage();
+
+      if (to.getExternal() == null
+          && !(m instanceof Envelope.RequestEnvelope)
+          && (mc instanceof NodeLocalAction || to instanceof NodeLocalAction)) {
+        Delivery<TN> d = new Delivery<>(time, from, to, mc, m.messageCount(), m.messageSize());
+        window.add(d);
+
+        m.markRead();
+        if (m.hasNextReader()) {
+          // The sequential execution adds the envelope back after the delivery, so after what the
+          //  node sent. That's the order for the replay, except if it arrives now: then it's the
+          //  next delivery of this batch.
+          int na = m.nextArrivalTime(network);
+          if (na == time) {
+            network.msgs.addMsg(m);
+          } else {
+            d.next = m;
+            d.closeWindow = na < windowEnd;
+          }
+        }
+      } else {
+        // This delivery can depend on anything, so everything before must have been done.
+        execute(window.subList(segment, window.size()));
+        replay();
+        segment = 0;
+
+        if (m instanceof Envelope.RequestEnvelope) {
+          network.deliverRequest((Envelope.RequestEnvelope<TN>) m);
+        } else {
+          network.deliver(
+              from,
+              to,
+              mc,
+              m.messageCount(),
+              m.messageSize(),
+              to.getExternal() == null ? null : (EnvelopeInfo<TN>) m.curInfos(network));
+          m.markRead();
+          if (m.hasNextReader()) {
+            network.msgs.addMsg(m);
+          }
+        }
+      }
+      m = network.msgs.poll(time);
+    }
+
+    List<Delivery<TN>> batch = window.subList(segment, window.size());
+    execute(batch);
+    for (Delivery<TN> d : batch) {
+      if (d.closeWindow) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Executes these deliveries, grouped by destination node. */
+  private void execute(List<Delivery<TN>> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    inPhase = true;
+    try {
+      if (batch.size() < MIN_PARALLEL_BATCH) {
+        executeGroup(batch);
+      } else {
+        for (Delivery<TN> d : batch) {
+          byThread.get(d.to.nodeId % threads).add(d);
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (List<Delivery<TN>> ds : byThread) {
+          if (!ds.isEmpty()) {
+            tasks.add(
+                () -> {
+                  executeGroup(ds);
+                  return null;
+                });
+          }
+        }
+        for (Future<Void> f : pool.invokeAll(tasks)) {
+          f.get();
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } finally {
+      inPhase = false;
+      for (List<Delivery<TN>> ds : byThread) {
+        ds.clear();
+      }
+    }
+  }
+
+  private void executeGroup(List<Delivery<TN>> ds) {
+    try {
+      for (Delivery<TN> d : ds) {
+        current.set(d);
+        network.deliver(d.from, d.to, d.message, d.count, d.size, null);
+      }
+    } finally {
+      current.remove();
+    }
+  }
+
+  /** Executes what the nodes did on the network during the window, in the sequential order. */
+  private void replay() {
+    int time = network.time;
+    for (Delivery<TN> d : window) {
+      if (d.ops != null || d.next != null) {
+        network.time = d.time;
+        if (d.ops != null) {
+          for (Runnable op : d.ops) {
+            op.run();
+          }
+        }
+        if (d.next != null) {
+          network.msgs.addMsg(d.next);
+        }
+      }
+    }
+    network.time = time;
+    window.clear();
+  }
+}
@@ -96,9 +96,9 @@ public class BlockChainNetwork<TB extends Block, TN extends BlockChainNode<TB>>
                 + "; "
                 + bpTx
                 + "; "
-                + bp.msgSent
+                + bp.getMsgSent()
                 + "; "
-                + bp.msgReceived);
+                + bp.getMsgReceived());
       }
     }
   }
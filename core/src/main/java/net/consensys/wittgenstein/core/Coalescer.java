@@ -0,0 +1,75 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.Arrays;
+import net.consensys.wittgenstein.core.utils.LongIntHashMap;
+
+/**
+ * The coalesced envelopes, by sender, receiver and arrival time. An envelope can receive new
+ * messages as long as its arrival time is in the future: it's still in the queue. The map only
+ * contains the index of the envelope in an array. Its key is a hash of the sender, the receiver and
+ * the arrival time: the envelope found is checked, and on a collision the new envelope replaces the
+ * previous one.
+ *
+ * <p>There is no cleanup per entry: everything is forgotten once all the envelopes have arrived, or
+ * when there are too many entries. We just lose the opportunity to coalesce some messages.
+ */
+final class Coalescer {
+  private static final int MAX_ENTRIES = 1 << 20;
+
+  private final LongIntHashMap indexes = new LongIntHashMap();
+  private Envelope.CoalescedEnvelope<?>[] envelopes = new Envelope.CoalescedEnvelope<?>[16];
+  private int used = 0;
+
+  /** The max arrival time of the envelopes in this table. */
+  private int lastArrival = 0;
+
+  /** The keys of a LongIntHashMap can't be negative. */
+  private static long key(int fromId, int toId, int arrival) {
+    return ((((long) fromId << 32) + toId) ^ (arrival * 0x9E3779B97F4A7C15L)) & Long.MAX_VALUE;
+  }
+
+  /** @return the envelope in which a message sent now can be merged, null if there is none. */
+  Envelope.CoalescedEnvelope<?> get(int fromId, int toId, int arrival, int time) {
+    if (time >= lastArrival) {
+      clear();
+      return null;
+    }
+    int pos = indexes.get(key(fromId, toId, arrival), -1);
+    if (pos < 0) {
+      return null;
+    }
+    Envelope.CoalescedEnvelope<?> ce = envelopes[pos];
+    boolean found =
+        ce.fromNodeId == fromId
+            && ce.toNodeId == toId
+            && ce.arrivalTime == arrival
+            && arrival > time
+            && !ce.closed;
+    return found ? ce : null;
+  }
+
+  void put(Envelope.CoalescedEnvelope<?> ce) {
+    if (used >= MAX_ENTRIES) {
+      clear();
+    }
+    long key = key(ce.fromNodeId, ce.toNodeId, ce.arrivalTime);
+    int pos = indexes.get(key, -1);
+    if (pos < 0) {
+      if (used == envelopes.length) {
+        envelopes = Arrays.copyOf(envelopes, used * 2);
+      }
+      pos = used++;
+      indexes.put(key, pos);
+    }
+    envelopes[pos] = ce;
+    lastArrival = Math.max(lastArrival, ce.arrivalTime);
+  }
+
+  void clear() {
+    if (used > 0) {
+      indexes.clear();
+      Arrays.fill(envelopes, 0, used, null);
+      used = 0;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import net.consensys.wittgenstein.core.messages.ConditionalTask;
+
+/**
+ * The conditional tasks, sorted by their start time: we only look at the tasks that can start.
+ *
+ * <p>The tasks are checked in 'runs'. A run starts when there is no message to deliver at the
+ * current time, and ends when there is one. During a run a task is checked once at most, and the
+ * tasks registered during the run will be checked in the next one. When multiple tasks can start at
+ * the same time they are checked in their registration order.
+ *
+ * <p>A task with a condition that stays false for a long time costs a check per run. To avoid this
+ * a task can be registered with 'wakeOnSignal': once its condition is false it's not checked
+ * anymore, until the node calls Network#wakeUpConditionalTasks. The node must do this every time
+ * the condition may have become true, typically when something is added to an empty queue.
+ */
+final class ConditionalTaskScheduler<TN extends Node> {
+
+  private static final class Entry<TN extends Node> {
+    final ConditionalTask<TN> ct;
+    final long seq;
+    final boolean wakeOnSignal;
+
+    Entry(ConditionalTask<TN> ct, long seq, boolean wakeOnSignal) {
+      this.ct = ct;
+      this.seq = seq;
+      this.wakeOnSignal = wakeOnSignal;
+    }
+  }
+
+  private long lastSeq = 0;
+
+  /** The tasks waiting for their start time, or for the next run if they can start already. */
+  private final PriorityQueue<Entry<TN>> waiting =
+      new PriorityQueue<>(
+          Comparator.<Entry<TN>>comparingInt(e -> e.ct.minStartTime).thenComparingLong(e -> e.seq));
+
+  /** The tasks to check at the current time, in registration order. */
+  private final PriorityQueue<Entry<TN>> toCheck =
+      new PriorityQueue<>(Comparator.comparingLong(e -> e.seq));
+
+  /** The tasks already checked or registered during the current run. */
+  private final List<Entry<TN>> nextRun = new ArrayList<>();
+
+  /** The tasks with 'wakeOnSignal' and a false condition, by node id. */
+  private final List<List<Entry<TN>>> sleeping = new ArrayList<>();
+
+  private int size = 0;
+  private boolean inRun = false;
+  private int runStart;
+  private int checkTime;
+  private long checkedSeq;
+
+  void register(ConditionalTask<TN> ct, boolean wakeOnSignal) {
+    Entry<TN> e = new Entry<>(ct, ++lastSeq, wakeOnSignal);
+    size++;
+    if (inRun) {
+      nextRun.add(e);
+    } else {
+      waiting.add(e);
+    }
+  }
+
+  /** @return the number of conditional tasks, including the sleeping ones. */
+  int size() {
+    return size;
+  }
+
+  /** @return the time at which the first task can start, Integer.MAX_VALUE if there is none. */
+  int nextStartTime() {
+    Entry<TN> e = waiting.peek();
+    return e == null ? Integer.MAX_VALUE : e.ct.minStartTime;
+  }
+
+  /** Starts a run at 'time': the first check will be at time + 1 at the earliest. */
+  void startRun(int time) {
+    inRun = true;
+    runStart = time;
+    checkTime = Integer.MIN_VALUE;
+  }
+
+  void endRun() {
+    inRun = false;
+    waiting.addAll(nextRun);
+    nextRun.clear();
+  }
+
+  /** Checks all the tasks that can start at 'time' and runs them if their condition is met. */
+  void check(int time, int until) {
+    int limit = Math.min(time, until);
+    while (!waiting.isEmpty() && waiting.peek().ct.minStartTime <= limit) {
+      toCheck.add(waiting.poll());
+    }
+
+    checkTime = time;
+    while (!toCheck.isEmpty()) {
+      Entry<TN> e = toCheck.poll();
+      ConditionalTask<TN> ct = e.ct;
+      checkedSeq = e.seq;
+      if (ct.from.isDown()) {
+        nextRun.add(e);
+      } else if (ct.startIf.check()) {
+        assert ct.r != null;
+        ct.r.run();
+        ct.minStartTime = time + ct.duration;
+        if (ct.repeatIf.check()) {
+          nextRun.add(e);
+        } else {
+          size--;
+        }
+      } else if (e.wakeOnSignal) {
+        while (sleeping.size() <= ct.from.nodeId) {
+          sleeping.add(null);
+        }
+        if (sleeping.get(ct.from.nodeId) == null) {
+          sleeping.set(ct.from.nodeId, new ArrayList<>(1));
+        }
+        sleeping.get(ct.from.nodeId).add(e);
+      } else {
+        nextRun.add(e);
+      }
+    }
+  }
+
+  /** @return true if this node has tasks waiting for a signal. */
+  boolean isSleeping(Node n) {
+    List<Entry<TN>> ss = n.nodeId < sleeping.size() ? sleeping.get(n.nodeId) : null;
+    return ss != null && !ss.isEmpty();
+  }
+
+  void wakeUp(Node n) {
+    if (!isSleeping(n)) {
+      return;
+    }
+    List<Entry<TN>> ss = sleeping.get(n.nodeId);
+    for (Entry<TN> e : ss) {
+      if (!inRun) {
+        waiting.add(e);
+      } else if (checkTime == runStart + 1 && e.seq > checkedSeq) {
+        // Without the signal this task would have been checked now, after the current one. So
+        //  we check it now as well, to have exactly the same behavior.
+        toCheck.add(e);
+      } else {
+        nextRun.add(e);
+      }
+    }
+    ss.clear();
+  }
+}
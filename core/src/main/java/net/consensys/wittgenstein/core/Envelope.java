@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import net.consensys.wittgenstein.core.messages.Message;
+import net.consensys.wittgenstein.core.messages.RequestMessage;
 
 /** This is a class internal to the framework. */
 @SuppressWarnings("WeakerAccess")
@@ -29,6 +30,9 @@ abstract class Envelope<TN extends Node> {
 
   abstract boolean hasNextReader();
 
+  /** @return the number of nodes that will still receive this envelope, including the next one. */
+  abstract int remainingReaders();
+
   abstract int getFromId();
 
   EnvelopeInfo<?> curInfos(Network<?> network) {
@@ -38,6 +42,73 @@ abstract class Envelope<TN extends Node> {
 
   abstract List<EnvelopeInfo<?>> infos(Network<?> network);
 
+  /** @return an estimation of the memory used by this envelope, without its message. */
+  abstract int heapSize();
+
+  /**
+   * Writes this envelope for its remaining readers, without its message. By default an envelope
+   * can't be written.
+   *
+   * @return false if nothing was written: this envelope must stay on the heap, see
+   *     EventQueue.Spilling.
+   */
+  boolean spill(SpillFile.Stream out) {
+    return false;
+  }
+
+  /**
+   * For the statistics: the number of messages received by the current reader. More than one if
+   * messages were coalesced, see CoalescedEnvelope.
+   */
+  int messageCount() {
+    return 1;
+  }
+
+  /** For the statistics: the size of the messages received by the current reader. */
+  int messageSize() {
+    return getMessage().size();
+  }
+
+  private static final int SINGLE = 0;
+  private static final int MULTIPLE = 1;
+  private static final int MULTIPLE_WITH_DELAY = 2;
+
+  /** Reads an envelope written by 'spill'. */
+  static <TN extends Node> Envelope<TN> unspill(SpillFile.Stream in, Message<TN> message) {
+    int type = in.readInt();
+    int sendTime = in.readInt();
+    int fromId = in.readInt();
+    switch (type) {
+      case SINGLE:
+        {
+          int toId = in.readInt();
+          return new SingleDestEnvelope<>(message, fromId, toId, sendTime, in.readInt());
+        }
+      case MULTIPLE:
+        {
+          int randomSeed = in.readInt();
+          int[] destIds = new int[in.readInt()];
+          for (int i = 0; i < destIds.length; i++) {
+            destIds[i] = in.readInt();
+          }
+          return new MultipleDestEnvelope<>(message, fromId, destIds, sendTime, randomSeed);
+        }
+      case MULTIPLE_WITH_DELAY:
+        {
+          int[] destIds = new int[in.readInt()];
+          int[] arrivalTime = new int[destIds.length];
+          for (int i = 0; i < destIds.length; i++) {
+            destIds[i] = in.readInt();
+            arrivalTime[i] = in.readInt();
+          }
+          return new MultipleDestWithDelayEnvelope<>(
+              message, fromId, destIds, arrivalTime, sendTime);
+        }
+      default:
+        throw new IllegalStateException("Unknown envelope type: " + type);
+    }
+  }
+
   public Envelope(int sendTime) {
     this.sendTime = sendTime;
   }
@@ -63,21 +134,21 @@ abstract class Envelope<TN extends Node> {
     protected int curPos = 0;
     private Envelope<?> nextSameTime = null;
 
+    /**
+     * The arrival time for the current destination. Calculating the latency can be expensive, and
+     * it's needed multiple times for each destination.
+     */
+    private int curArrival = NOT_CALCULATED;
+
+    private static final int NOT_CALCULATED = Integer.MIN_VALUE;
+
     MultipleDestEnvelope(
-        Message<TN> m,
-        Node fromNode,
-        List<Network.MessageArrival> dests,
-        int sendTime,
-        int randomSeed) {
+        Message<TN> m, int fromNodeId, int[] destIds, int sendTime, int randomSeed) {
       super(sendTime);
       this.message = m;
-      this.fromNodeId = fromNode.nodeId;
+      this.fromNodeId = fromNodeId;
       this.randomSeed = randomSeed;
-      this.destIds = new int[dests.size()];
-
-      for (int i = 0; i < destIds.length; i++) {
-        destIds[i] = dests.get(i).dest.nodeId;
-      }
+      this.destIds = destIds;
     }
 
     @Override
@@ -108,13 +179,16 @@ abstract class Envelope<TN extends Node> {
       int rd = Network.getPseudoRandom(destId, randomSeed);
       Node f = network.getNodeById(this.fromNodeId);
       Node t = network.getNodeById(destId);
-      int lat = network.networkLatency.getLatency(f, t, rd);
+      int lat = network.getLatency(f, t, rd);
       return sendTime + lat;
     }
 
     @Override
     int nextArrivalTime(Network<?> network) {
-      return arrivalTime(network, getNextDestId());
+      if (curArrival == NOT_CALCULATED) {
+        curArrival = arrivalTime(network, getNextDestId());
+      }
+      return curArrival;
     }
 
     @Override
@@ -129,6 +203,7 @@ abstract class Envelope<TN extends Node> {
 
     void markRead() {
       curPos++;
+      curArrival = NOT_CALCULATED;
     }
 
     @Override
@@ -136,6 +211,11 @@ abstract class Envelope<TN extends Node> {
       return curPos < destIds.length;
     }
 
+    @Override
+    int remainingReaders() {
+      return destIds.length - curPos;
+    }
+
     @Override
     int getFromId() {
       return fromNodeId;
@@ -152,6 +232,24 @@ abstract class Envelope<TN extends Node> {
       }
       return res;
     }
+
+    @Override
+    int heapSize() {
+      return 60 + 4 * destIds.length;
+    }
+
+    @Override
+    boolean spill(SpillFile.Stream out) {
+      out.writeInt(MULTIPLE);
+      out.writeInt(sendTime);
+      out.writeInt(fromNodeId);
+      out.writeInt(randomSeed);
+      out.writeInt(destIds.length - curPos);
+      for (int i = curPos; i < destIds.length; i++) {
+        out.writeInt(destIds[i]);
+      }
+      return true;
+    }
   }
 
   static final class MultipleDestWithDelayEnvelope<TN extends Node> extends Envelope<TN> {
@@ -164,16 +262,12 @@ abstract class Envelope<TN extends Node> {
     private Envelope<?> nextSameTime = null;
 
     MultipleDestWithDelayEnvelope(
-        Message<TN> m, Node fromNode, List<Network.MessageArrival> dests, int sendTime) {
+        Message<TN> m, int fromNodeId, int[] destIds, int[] arrivalTime, int sendTime) {
       super(sendTime);
       this.message = m;
-      this.fromNodeId = fromNode.nodeId;
-      this.destIds = new int[dests.size()];
-      this.arrivalTime = new int[dests.size()];
-      for (int i = 0; i < destIds.length; i++) {
-        destIds[i] = dests.get(i).dest.nodeId;
-        arrivalTime[i] = dests.get(i).arrival;
-      }
+      this.fromNodeId = fromNodeId;
+      this.destIds = destIds;
+      this.arrivalTime = arrivalTime;
     }
 
     @Override
@@ -210,6 +304,11 @@ abstract class Envelope<TN extends Node> {
       return curPos < destIds.length;
     }
 
+    @Override
+    int remainingReaders() {
+      return destIds.length - curPos;
+    }
+
     @Override
     int getFromId() {
       return fromNodeId;
@@ -225,6 +324,24 @@ abstract class Envelope<TN extends Node> {
       }
       return res;
     }
+
+    @Override
+    int heapSize() {
+      return 72 + 8 * destIds.length;
+    }
+
+    @Override
+    boolean spill(SpillFile.Stream out) {
+      out.writeInt(MULTIPLE_WITH_DELAY);
+      out.writeInt(sendTime);
+      out.writeInt(fromNodeId);
+      out.writeInt(destIds.length - curPos);
+      for (int i = curPos; i < destIds.length; i++) {
+        out.writeInt(destIds[i]);
+        out.writeInt(arrivalTime[i]);
+      }
+      return true;
+    }
   }
 
   static final class SingleDestEnvelope<TN extends Node> extends Envelope<TN> {
@@ -246,10 +363,15 @@ abstract class Envelope<TN extends Node> {
 
     SingleDestEnvelope(
         Message<TN> message, Node fromNode, Node toNode, int sendTime, int arrivalTime) {
+      this(message, fromNode.nodeId, toNode.nodeId, sendTime, arrivalTime);
+    }
+
+    SingleDestEnvelope(
+        Message<TN> message, int fromNodeId, int toNodeId, int sendTime, int arrivalTime) {
       super(sendTime);
       this.message = message;
-      this.fromNodeId = fromNode.nodeId;
-      this.toNodeId = toNode.nodeId;
+      this.fromNodeId = fromNodeId;
+      this.toNodeId = toNodeId;
       this.arrivalTime = arrivalTime;
     }
 
@@ -288,6 +410,11 @@ abstract class Envelope<TN extends Node> {
       return false;
     }
 
+    @Override
+    int remainingReaders() {
+      return 1;
+    }
+
     @Override
     int getFromId() {
       return fromNodeId;
@@ -298,5 +425,256 @@ abstract class Envelope<TN extends Node> {
       return Collections.singletonList(
           new EnvelopeInfo<>(fromNodeId, toNodeId, sendTime, arrivalTime, message));
     }
+
+    @Override
+    int heapSize() {
+      return 40;
+    }
+
+    @Override
+    boolean spill(SpillFile.Stream out) {
+      out.writeInt(SINGLE);
+      out.writeInt(sendTime);
+      out.writeInt(fromNodeId);
+      out.writeInt(toNodeId);
+      out.writeInt(arrivalTime);
+      return true;
+    }
+  }
+
+  /**
+   * A request, then its answer: once the request has been delivered, the same envelope goes back to
+   * the node that sent the request, with the answer. See RequestMessage. The answer can't be
+   * written, so these envelopes are never spilled.
+   */
+  static final class RequestEnvelope<TN extends Node> extends Envelope<TN> {
+    final RequestMessage<TN, Object> message;
+    final int requesterId;
+    final int responderId;
+    final int randomSeed;
+
+    /** The id of the timer for the timeout, 0 if there is no timeout. */
+    final long timeoutId;
+
+    private int arrivalTime;
+    private Object answer = null;
+    private Envelope<?> nextSameTime = null;
+
+    @SuppressWarnings("unchecked")
+    RequestEnvelope(
+        RequestMessage<TN, ?> message,
+        int requesterId,
+        int responderId,
+        int sendTime,
+        int arrivalTime,
+        int randomSeed,
+        long timeoutId) {
+      super(sendTime);
+      this.message = (RequestMessage<TN, Object>) message;
+      this.requesterId = requesterId;
+      this.responderId = responderId;
+      this.arrivalTime = arrivalTime;
+      this.randomSeed = randomSeed;
+      this.timeoutId = timeoutId;
+    }
+
+    boolean isAnswer() {
+      return answer != null;
+    }
+
+    Object getAnswer() {
+      return answer;
+    }
+
+    /** The request has been delivered: the envelope now goes back with the answer. */
+    void setAnswer(Object answer, int arrivalTime) {
+      this.answer = answer;
+      this.arrivalTime = arrivalTime;
+    }
+
+    @Override
+    public String toString() {
+      return "Envelope{"
+          + "message="
+          + message
+          + ", fromNode="
+          + getFromId()
+          + ", dest="
+          + getNextDestId()
+          + ", answer="
+          + answer
+          + '}';
+    }
+
+    @Override
+    Envelope<?> getNextSameTime() {
+      return nextSameTime;
+    }
+
+    @Override
+    void setNextSameTime(Envelope<?> nextSameTime) {
+      this.nextSameTime = nextSameTime;
+    }
+
+    @Override
+    Message<TN> getMessage() {
+      return message;
+    }
+
+    @Override
+    int getNextDestId() {
+      return isAnswer() ? requesterId : responderId;
+    }
+
+    @Override
+    int nextArrivalTime(Network<?> network) {
+      return arrivalTime;
+    }
+
+    /** The network puts the envelope back in the queue itself, with the answer. */
+    @Override
+    void markRead() {}
+
+    @Override
+    boolean hasNextReader() {
+      return false;
+    }
+
+    @Override
+    int remainingReaders() {
+      return 1;
+    }
+
+    @Override
+    int getFromId() {
+      return isAnswer() ? responderId : requesterId;
+    }
+
+    @Override
+    List<EnvelopeInfo<?>> infos(Network<?> network) {
+      return Collections.singletonList(curInfos(network));
+    }
+
+    @Override
+    int heapSize() {
+      return 56;
+    }
+  }
+
+  /**
+   * A single destination envelope in which the network can merge the next messages sent to the same
+   * node and arriving at the same time. See Coalescable. It's never spilled, as the next messages
+   * can still be merged in it.
+   */
+  static final class CoalescedEnvelope<TN extends Node> extends Envelope<TN> {
+    private Message<TN> message;
+    final int fromNodeId;
+    final int toNodeId;
+    final int arrivalTime;
+    private int count = 1;
+    private int size;
+    private Envelope<?> nextSameTime = null;
+
+    /** Set when the envelope has been removed from the queue before its arrival time. */
+    boolean closed = false;
+
+    CoalescedEnvelope(
+        Message<TN> message, int fromNodeId, int toNodeId, int sendTime, int arrivalTime) {
+      super(sendTime);
+      this.message = message;
+      this.fromNodeId = fromNodeId;
+      this.toNodeId = toNodeId;
+      this.arrivalTime = arrivalTime;
+      this.size = message.size();
+    }
+
+    /**
+     * Replaces the message by the merged message.
+     *
+     * @param count - the number of messages received for the statistics.
+     * @param size - the size of the messages received for the statistics.
+     */
+    void coalesce(Message<TN> merged, int count, int size) {
+      this.message = merged;
+      this.count = count;
+      this.size = size;
+    }
+
+    @Override
+    public String toString() {
+      return "Envelope{"
+          + "message="
+          + message
+          + ", fromNode="
+          + fromNodeId
+          + ", dest="
+          + toNodeId
+          + ", count="
+          + count
+          + '}';
+    }
+
+    @Override
+    Envelope<?> getNextSameTime() {
+      return nextSameTime;
+    }
+
+    @Override
+    void setNextSameTime(Envelope<?> nextSameTime) {
+      this.nextSameTime = nextSameTime;
+    }
+
+    @Override
+    Message<TN> getMessage() {
+      return message;
+    }
+
+    @Override
+    int getNextDestId() {
+      return toNodeId;
+    }
+
+    @Override
+    int nextArrivalTime(Network<?> network) {
+      return arrivalTime;
+    }
+
+    @Override
+    void markRead() {}
+
+    @Override
+    boolean hasNextReader() {
+      return false;
+    }
+
+    @Override
+    int remainingReaders() {
+      return 1;
+    }
+
+    @Override
+    int getFromId() {
+      return fromNodeId;
+    }
+
+    @Override
+    int messageCount() {
+      return count;
+    }
+
+    @Override
+    int messageSize() {
+      return size;
+    }
+
+    @Override
+    List<EnvelopeInfo<?>> infos(Network<?> network) {
+      return Collections.singletonList(curInfos(network));
+    }
+
+    @Override
+    int heapSize() {
+      return 48;
+    }
   }
 }
@@ -0,0 +1,684 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import net.consensys.wittgenstein.core.messages.Message;
+
+/**
+ * Where the envelopes in transit are stored, sorted by arrival time. We need repeatable runs, so
+ * when multiple envelopes arrive at the same millisecond the last one added is the first one
+ * returned, whatever the implementation.
+ *
+ * <p>Envelopes are chained with their 'nextSameTime' field, so an envelope can be in a single queue
+ * only.
+ */
+public abstract class EventQueue {
+  /** The network using this queue. We need it to calculate the arrival time of the envelopes. */
+  Network<?> network;
+
+  void setNetwork(Network<?> network) {
+    this.network = network;
+  }
+
+  abstract void add(Envelope<?> m, int arrival);
+
+  /** @return the last envelope added among the ones arriving at 'time', null if there is none. */
+  abstract Envelope<?> peek(int time);
+
+  /** Same as peek, but removes the envelope from the queue. */
+  abstract Envelope<?> poll(int time);
+
+  abstract int sizeAt(int time);
+
+  /**
+   * @return a time such as no envelope arrives between aTime (included) and this time (excluded),
+   *     Integer.MAX_VALUE if there is nothing after aTime. This time can be before the actual
+   *     arrival if the implementation doesn't know it precisely: we will just poll a little bit
+   *     more often.
+   */
+  abstract int nextArrivalTime(int aTime);
+
+  /** @return the first envelope in the queue, null if the queue is empty. */
+  abstract Envelope<?> peekFirst();
+
+  abstract void forEach(Consumer<Envelope<?>> c);
+
+  abstract void clear();
+
+  /**
+   * Empties the queue and releases the resources it holds outside of the heap, if any. The queue
+   * can be used again after.
+   */
+  void close() {
+    clear();
+  }
+
+  @Override
+  public String toString() {
+    return this.getClass().getSimpleName();
+  }
+
+  /**
+   * A desperate attempt to have something less memory consuming than a PriorityQueue or a guava
+   * multimap, by using raw array. The idea is to optimize the case when there are multiple messages
+   * in the same millisecond, but the global time range for all messages is limited.
+   *
+   * <p>The second idea is to have a repeatable run when there are multiple messages arriving at the
+   * same millisecond.
+   *
+   * <p>This was the only implementation before the TimingWheel, and is kept as a reference.
+   */
+  public static class MinuteSlots extends EventQueue {
+    static final int duration = Network.duration;
+
+    final ArrayList<MsgsSlot> msgsBySlot = new ArrayList<>();
+
+    static final class MsgsSlot {
+      final int startTime;
+      final int endTime;
+      final Envelope<?>[] msgsByMs = new Envelope[duration];
+
+      /**
+       * The milliseconds with at least one envelope. Allows to jump directly to the next one when
+       * the simulation is sparse.
+       */
+      final OccupancyBitmap occupied = new OccupancyBitmap(duration);
+
+      MsgsSlot(int startTime) {
+        this.startTime = startTime - (startTime % duration);
+        this.endTime = this.startTime + duration;
+      }
+
+      private int getPos(int aTime) {
+        if (aTime < startTime || aTime >= startTime + duration) {
+          throw new IllegalArgumentException(
+              "aTime=" + aTime + ", startTime=" + startTime + ", duration=" + duration);
+        }
+        return (aTime % duration);
+      }
+
+      void addMsg(Envelope<?> m, int aTime) {
+        int pos = getPos(aTime);
+        m.setNextSameTime(msgsByMs[pos]);
+        msgsByMs[pos] = m;
+        occupied.set(pos);
+      }
+
+      Envelope<?> peek(int time) {
+        int pos = getPos(time);
+        return msgsByMs[pos];
+      }
+
+      Envelope<?> poll(int time) {
+        int pos = getPos(time);
+        Envelope<?> m = msgsByMs[pos];
+        if (m != null) {
+          msgsByMs[pos] = m.getNextSameTime();
+          if (msgsByMs[pos] == null) {
+            occupied.clear(pos);
+          }
+        }
+        return m;
+      }
+
+      /** @return the first time at or after aTime with an envelope in this slot, -1 if none. */
+      int nextArrivalTime(int aTime) {
+        int pos = occupied.nextSetBit(Math.max(aTime, startTime) - startTime);
+        return pos < 0 ? -1 : startTime + pos;
+      }
+
+      Envelope<?> peekFirst() {
+        int pos = occupied.nextSetBit(0);
+        return pos < 0 ? null : msgsByMs[pos];
+      }
+
+      void forEach(Consumer<Envelope<?>> c) {
+        for (int pos = occupied.nextSetBit(0); pos >= 0; pos = occupied.nextSetBit(pos + 1)) {
+          for (Envelope<?> m = msgsByMs[pos]; m != null; m = m.getNextSameTime()) {
+            c.accept(m);
+          }
+        }
+      }
+    }
+
+    void cleanup() {
+      while (!msgsBySlot.isEmpty() && network.time >= msgsBySlot.get(0).endTime) {
+        msgsBySlot.remove(0);
+      }
+      if (msgsBySlot.isEmpty()) {
+        msgsBySlot.add(new MsgsSlot(network.time));
+      }
+    }
+
+    void ensureSize(int aTime) {
+      while (msgsBySlot.get(msgsBySlot.size() - 1).endTime <= aTime) {
+        msgsBySlot.add(new MsgsSlot(msgsBySlot.get(msgsBySlot.size() - 1).endTime));
+      }
+    }
+
+    MsgsSlot findSlot(int aTime) {
+      cleanup();
+      ensureSize(aTime);
+      int pos = (aTime - msgsBySlot.get(0).startTime) / duration;
+      if (pos >= msgsBySlot.size()) {
+        throw new IllegalStateException("pos=" + pos + ", size=" + msgsBySlot.size());
+      }
+      return msgsBySlot.get(pos);
+    }
+
+    @Override
+    void add(Envelope<?> m, int arrival) {
+      findSlot(arrival).addMsg(m, arrival);
+    }
+
+    @Override
+    Envelope<?> peek(int time) {
+      return findSlot(time).peek(time);
+    }
+
+    @Override
+    Envelope<?> poll(int time) {
+      return findSlot(time).poll(time);
+    }
+
+    @Override
+    int sizeAt(int time) {
+      int size = 0;
+      for (Envelope<?> cur = peek(time); cur != null; cur = cur.getNextSameTime()) {
+        size++;
+      }
+      return size;
+    }
+
+    @Override
+    int nextArrivalTime(int aTime) {
+      for (MsgsSlot ms : msgsBySlot) {
+        if (ms.endTime > aTime) {
+          int res = ms.nextArrivalTime(aTime);
+          if (res >= 0) {
+            return res;
+          }
+        }
+      }
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    Envelope<?> peekFirst() {
+      for (MsgsSlot ms : msgsBySlot) {
+        Envelope<?> m = ms.peekFirst();
+        if (m != null) return m;
+      }
+      return null;
+    }
+
+    @Override
+    void forEach(Consumer<Envelope<?>> c) {
+      for (MsgsSlot ms : msgsBySlot) {
+        ms.forEach(c);
+      }
+    }
+
+    @Override
+    void clear() {
+      msgsBySlot.clear();
+      cleanup();
+    }
+  }
+
+  /**
+   * A hierarchical timing wheel. The first level has one bucket per millisecond for the next 4
+   * seconds. Each next level has 64 buckets, each covering a full turn of the level below: 4
+   * minutes, 4 hours, 12 days, then the rest of the 'int' range. When the time enters a bucket of a
+   * higher level, its envelopes are moved to the level below.
+   *
+   * <p>The arrays are allocated once, the first time a level is used, and are then reused turn
+   * after turn: contrary to MinuteSlots, the memory used does not depend on how far in the future
+   * the envelopes arrive.
+   *
+   * <p>Within a bucket, the envelopes are sorted from the last added to the first added. We keep
+   * this order when we move them to a lower level, so we have exactly the same runs as with
+   * MinuteSlots.
+   */
+  public static class TimingWheel extends EventQueue {
+    private static final int[] BITS = {12, 6, 6, 6, 2};
+    private static final int[] SHIFT = {0, 12, 18, 24, 30};
+    private static final int LEVELS = BITS.length;
+
+    private final Envelope<?>[][] buckets = new Envelope<?>[LEVELS][];
+    private final OccupancyBitmap[] occupied = new OccupancyBitmap[LEVELS];
+
+    /** The envelopes arriving before this time have all been polled already. */
+    private int now = 0;
+
+    private static int index(int time, int level) {
+      return (time >>> SHIFT[level]) & ((1 << BITS[level]) - 1);
+    }
+
+    /** @return the first time of the block of 'level' buckets containing 'time'. */
+    private static int base(int time, int level) {
+      return level == LEVELS - 1 ? 0 : (time >>> SHIFT[level + 1]) << SHIFT[level + 1];
+    }
+
+    /** @return the lowest level with a bucket for this time. */
+    private int level(int time) {
+      int l = 0;
+      while (l < LEVELS - 1 && (time >>> SHIFT[l + 1]) != (now >>> SHIFT[l + 1])) {
+        l++;
+      }
+      return l;
+    }
+
+    private void push(Envelope<?> m, int arrival) {
+      int l = level(arrival);
+      if (buckets[l] == null) {
+        buckets[l] = new Envelope<?>[1 << BITS[l]];
+        occupied[l] = new OccupancyBitmap(1 << BITS[l]);
+      }
+      int idx = index(arrival, l);
+      m.setNextSameTime(buckets[l][idx]);
+      buckets[l][idx] = m;
+      occupied[l].set(idx);
+    }
+
+    /** Moves the envelopes of a bucket to the lower levels. */
+    private void cascade(int l, int idx) {
+      Envelope<?> m = buckets[l] == null ? null : buckets[l][idx];
+      if (m == null) {
+        return;
+      }
+      buckets[l][idx] = null;
+      occupied[l].clear(idx);
+
+      // We reverse the list, so the last envelope added is still the first one once pushed again.
+      Envelope<?> first = null;
+      while (m != null) {
+        Envelope<?> next = m.getNextSameTime();
+        m.setNextSameTime(first);
+        first = m;
+        m = next;
+      }
+      while (first != null) {
+        Envelope<?> next = first.getNextSameTime();
+        push(first, first.nextArrivalTime(network));
+        first = next;
+      }
+    }
+
+    private void setNow(int time) {
+      int top = LEVELS - 1;
+      while (top > 0 && (time >>> SHIFT[top]) == (now >>> SHIFT[top])) {
+        top--;
+      }
+      now = time;
+      for (int l = top; l > 0; l--) {
+        cascade(l, index(time, l));
+      }
+    }
+
+    /** Moves the wheel to 'time'. There must be no envelope arriving before. */
+    private void moveTo(int time) {
+      while (now < time) {
+        int next = nextArrivalTime(now);
+        if (next >= time) {
+          setNow(time);
+        } else {
+          setNow(next);
+          if (buckets[0] != null && buckets[0][index(now, 0)] != null) {
+            throw new IllegalStateException(
+                "There are envelopes arriving at " + now + ", before " + time);
+          }
+        }
+      }
+    }
+
+    @Override
+    void add(Envelope<?> m, int arrival) {
+      if (arrival < now) {
+        throw new IllegalStateException(
+            "Can't add a message arriving in the past! now=" + now + ", arriving at " + arrival);
+      }
+      push(m, arrival);
+    }
+
+    @Override
+    Envelope<?> peek(int time) {
+      if (time < now) {
+        return null;
+      }
+      int l = level(time);
+      Envelope<?> m = buckets[l] == null ? null : buckets[l][index(time, l)];
+      if (l > 0) {
+        while (m != null && m.nextArrivalTime(network) != time) {
+          m = m.getNextSameTime();
+        }
+      }
+      return m;
+    }
+
+    @Override
+    Envelope<?> poll(int time) {
+      if (time < now) {
+        return null;
+      }
+      moveTo(time);
+      if (buckets[0] == null) {
+        return null;
+      }
+      int idx = index(time, 0);
+      Envelope<?> m = buckets[0][idx];
+      if (m != null) {
+        buckets[0][idx] = m.getNextSameTime();
+        if (buckets[0][idx] == null) {
+          occupied[0].clear(idx);
+        }
+      }
+      return m;
+    }
+
+    @Override
+    int sizeAt(int time) {
+      int size = 0;
+      for (Envelope<?> m = peek(time); m != null; m = m.getNextSameTime()) {
+        if (m.nextArrivalTime(network) == time) {
+          size++;
+        }
+      }
+      return size;
+    }
+
+    @Override
+    int nextArrivalTime(int aTime) {
+      int from = Math.max(aTime, now);
+      for (int l = 0; l < LEVELS; l++) {
+        if (occupied[l] == null || base(from, l) != base(now, l)) {
+          // The buckets of a level are all in the same block as 'now'. If 'from' is after this
+          //  block there is nothing to look for at this level.
+          continue;
+        }
+        int p = occupied[l].nextSetBit(index(from, l));
+        if (p >= 0) {
+          return Math.max(from, base(now, l) + (p << SHIFT[l]));
+        }
+      }
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    Envelope<?> peekFirst() {
+      for (int l = 0; l < LEVELS; l++) {
+        int p = occupied[l] == null ? -1 : occupied[l].nextSetBit(index(now, l));
+        if (p >= 0) {
+          Envelope<?> res = buckets[l][p];
+          if (l > 0) {
+            // Envelopes in the bucket have different arrival times: we need to look at all of
+            //  them. For the same arrival time we keep the last added, i.e. the first in the list.
+            int best = res.nextArrivalTime(network);
+            for (Envelope<?> m = res.getNextSameTime(); m != null; m = m.getNextSameTime()) {
+              int arrival = m.nextArrivalTime(network);
+              if (arrival < best) {
+                best = arrival;
+                res = m;
+              }
+            }
+          }
+          return res;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    void forEach(Consumer<Envelope<?>> c) {
+      for (int l = 0; l < LEVELS; l++) {
+        if (occupied[l] == null) {
+          continue;
+        }
+        for (int p = occupied[l].nextSetBit(0); p >= 0; p = occupied[l].nextSetBit(p + 1)) {
+          for (Envelope<?> m = buckets[l][p]; m != null; m = m.getNextSameTime()) {
+            c.accept(m);
+          }
+        }
+      }
+    }
+
+    @Override
+    void clear() {
+      for (int l = 0; l < LEVELS; l++) {
+        if (buckets[l] != null) {
+          Arrays.fill(buckets[l], null);
+          occupied[l].clearAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Keeps on the heap the envelopes arriving soon, and stores the others in a memory-mapped file
+   * once the heap budget is reached. The file contains the compact form of the envelopes (the
+   * random seed and the destination ids for a MultipleDestEnvelope): only the message itself stays
+   * on the heap. The envelopes are loaded back when the time gets close to their arrival, before
+   * any other envelope arriving at the same time can be added, so the order is kept.
+   *
+   * <p>The envelopes are spilled by blocks of one second. Once an envelope of a block is spilled,
+   * all the envelopes of this block added later are spilled as well.
+   */
+  public static class Spilling extends EventQueue {
+    static final int BLOCK = 1000;
+    private static final int PAGE_INTS = 256 * 1024;
+
+    final EventQueue near;
+    private final int horizon;
+    private final long heapBudget;
+    SpillFile file;
+
+    /** The envelopes arriving before this time are all in 'near'. */
+    private int loadedUntil;
+
+    /** An estimation of the memory used by the envelopes in 'near'. */
+    private long heapSize = 0;
+
+    final TreeMap<Integer, SpilledBlock> spilled = new TreeMap<>();
+
+    static final class SpilledBlock {
+      final SpillFile.Stream stream;
+      /** The message of each envelope, or the envelope itself if it can't be spilled. */
+      final List<Object> messages = new ArrayList<>();
+
+      int minArrival = Integer.MAX_VALUE;
+
+      SpilledBlock(SpillFile.Stream stream) {
+        this.stream = stream;
+      }
+    }
+
+    /**
+     * @param near - where the envelopes are kept when they are on the heap.
+     * @param horizon - the envelopes arriving in less than 'horizon' milliseconds are never
+     *     spilled.
+     * @param heapBudget - the memory, in bytes, the envelopes can use before being spilled.
+     */
+    public Spilling(EventQueue near, int horizon, long heapBudget) {
+      if (horizon < 0 || heapBudget < 0) {
+        throw new IllegalArgumentException("horizon=" + horizon + ", heapBudget=" + heapBudget);
+      }
+      if (near.network != null) {
+        throw new IllegalArgumentException("This queue is already used by a network");
+      }
+      this.near = near;
+      this.horizon = horizon;
+      this.heapBudget = heapBudget;
+      this.loadedUntil = blockEnd(horizon);
+    }
+
+    private static int blockEnd(long time) {
+      return (int) Math.min(Integer.MAX_VALUE, (time / BLOCK + 1) * BLOCK);
+    }
+
+    @Override
+    void setNetwork(Network<?> network) {
+      super.setNetwork(network);
+      near.setNetwork(network);
+    }
+
+    /** @return an estimation of the memory used by the envelopes on the heap. */
+    public long getHeapSize() {
+      return heapSize;
+    }
+
+    /** Loads the envelopes that will arrive before the horizon. */
+    private void advance(int time) {
+      long target = (long) time + horizon;
+      if (target < loadedUntil) {
+        return;
+      }
+      loadedUntil = blockEnd(target);
+      Map.Entry<Integer, SpilledBlock> e;
+      while ((e = spilled.firstEntry()) != null && (long) e.getKey() * BLOCK < loadedUntil) {
+        spilled.remove(e.getKey());
+        load(e.getValue());
+      }
+    }
+
+    private void load(SpilledBlock sb) {
+      for (Object message : sb.messages) {
+        Envelope<?> m = unspill(sb, message);
+        near.add(m, m.nextArrivalTime(network));
+        heapSize += m.heapSize();
+      }
+      sb.stream.free();
+    }
+
+    @Override
+    void add(Envelope<?> m, int arrival) {
+      int size = m.heapSize();
+      if (arrival >= loadedUntil) {
+        int block = arrival / BLOCK;
+        SpilledBlock sb = spilled.get(block);
+        if (sb != null || heapSize + size > heapBudget) {
+          if (sb == null) {
+            if (file == null) {
+              file = new SpillFile(PAGE_INTS);
+            }
+            sb = new SpilledBlock(file.new Stream());
+            spilled.put(block, sb);
+          }
+          if (m.spill(sb.stream)) {
+            sb.messages.add(m.getMessage());
+          } else {
+            // Kept on the heap, but in the block to keep the order.
+            sb.messages.add(m);
+          }
+          sb.minArrival = Math.min(sb.minArrival, arrival);
+          return;
+        }
+      }
+      near.add(m, arrival);
+      heapSize += size;
+    }
+
+    @Override
+    Envelope<?> peek(int time) {
+      advance(time);
+      return near.peek(time);
+    }
+
+    @Override
+    Envelope<?> poll(int time) {
+      advance(time);
+      Envelope<?> m = near.poll(time);
+      if (m != null) {
+        heapSize -= m.heapSize();
+      }
+      return m;
+    }
+
+    @Override
+    int sizeAt(int time) {
+      advance(time);
+      return near.sizeAt(time);
+    }
+
+    @Override
+    int nextArrivalTime(int aTime) {
+      int res = near.nextArrivalTime(aTime);
+      Map.Entry<Integer, SpilledBlock> e = spilled.firstEntry();
+      if (e != null) {
+        res = Math.min(res, Math.max(aTime, e.getValue().minArrival));
+      }
+      return res;
+    }
+
+    private static Envelope<?> unspill(SpilledBlock sb, Object message) {
+      return message instanceof Envelope
+          ? (Envelope<?>) message
+          : Envelope.unspill(sb.stream, (Message<?>) message);
+    }
+
+    /** @return the envelopes of a spilled block, in the order they were added. */
+    private List<Envelope<?>> read(SpilledBlock sb) {
+      List<Envelope<?>> res = new ArrayList<>(sb.messages.size());
+      sb.stream.rewind();
+      for (Object message : sb.messages) {
+        res.add(unspill(sb, message));
+      }
+      sb.stream.rewind();
+      return res;
+    }
+
+    @Override
+    Envelope<?> peekFirst() {
+      Envelope<?> res = near.peekFirst();
+      Map.Entry<Integer, SpilledBlock> e = spilled.firstEntry();
+      if (e == null || (res != null && res.nextArrivalTime(network) < e.getValue().minArrival)) {
+        return res;
+      }
+      // The spilled envelopes were added after the ones on the heap for the same time, so they
+      //  come first. Among them, the last added comes first.
+      for (Envelope<?> m : read(e.getValue())) {
+        if (m.nextArrivalTime(network) == e.getValue().minArrival) {
+          res = m;
+        }
+      }
+      return res;
+    }
+
+    @Override
+    void forEach(Consumer<Envelope<?>> c) {
+      near.forEach(c);
+      for (SpilledBlock sb : spilled.values()) {
+        read(sb).forEach(c);
+      }
+    }
+
+    @Override
+    void clear() {
+      near.clear();
+      for (SpilledBlock sb : spilled.values()) {
+        sb.stream.free();
+      }
+      spilled.clear();
+      heapSize = 0;
+    }
+
+    /** Closes the spill file: a new one is created if the queue is used again. */
+    @Override
+    void close() {
+      clear();
+      near.close();
+      if (file != null) {
+        file.close();
+        file = null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Spilling{near=" + near + ", horizon=" + horizon + ", heapBudget=" + heapBudget + '}';
+    }
+  }
+}
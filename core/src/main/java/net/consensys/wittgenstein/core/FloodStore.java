@@ -0,0 +1,214 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.*;
+import net.consensys.wittgenstein.core.messages.FloodMessage;
+import net.consensys.wittgenstein.core.messages.StatusFloodMessage;
+import net.consensys.wittgenstein.core.utils.LongIntHashMap;
+
+/**
+ * Where the flood messages received by the P2P nodes are kept, so that a node sends a message to
+ * its peers only once. There is one for all the nodes of a P2PNetwork, see
+ * P2PNetwork#setFloodStore.
+ */
+public interface FloodStore<TN extends P2PNode<TN>> {
+
+  /** @return true if the node had not received this message yet. */
+  boolean add(TN node, FloodMessage<TN> m);
+
+  /**
+   * A status message replaces the previous versions with the same msgId.
+   *
+   * @return true if the node had not received this version or a more recent one.
+   */
+  boolean addStatus(TN node, StatusFloodMessage<TN> m);
+
+  /** @return the messages with this id received by this node, the last version for a status. */
+  Set<FloodMessage<?>> getReceived(P2PNode<TN> node, long msgId);
+
+  /** @return the number of messages with this id received by this node. */
+  default int getReceivedCount(P2PNode<TN> node, long msgId) {
+    return getReceived(node, msgId).size();
+  }
+
+  /** The default: each node has a map of sets of messages. */
+  @SuppressWarnings("unchecked")
+  static <TN extends P2PNode<TN>> FloodStore<TN> perNode() {
+    return (FloodStore<TN>) PerNode.INSTANCE;
+  }
+
+  final class PerNode<TN extends P2PNode<TN>> implements FloodStore<TN> {
+    private static final PerNode<?> INSTANCE = new PerNode<>();
+
+    private PerNode() {}
+
+    @Override
+    public boolean add(TN node, FloodMessage<TN> m) {
+      return getReceived(node, m.msgId()).add(m);
+    }
+
+    @Override
+    public boolean addStatus(TN node, StatusFloodMessage<TN> m) {
+      Set<FloodMessage<?>> previousSet = getReceived(node, m.msgId());
+      Object previous = previousSet.isEmpty() ? null : previousSet.iterator().next();
+      StatusFloodMessage<?> psf = (StatusFloodMessage<?>) previous;
+      if (psf != null && psf.seq() >= m.seq()) {
+        return false;
+      }
+      previousSet.clear(); // By definition we want only one element in the set
+      previousSet.add(m);
+      return true;
+    }
+
+    @Override
+    public Set<FloodMessage<?>> getReceived(P2PNode<TN> node, long msgId) {
+      if (node.received == null) {
+        node.received = new HashMap<>();
+      }
+      return node.received.computeIfAbsent(msgId, k -> new HashSet<>());
+    }
+  }
+
+  /**
+   * Without any object per node and message: the receivers of a message are in a BitSet indexed by
+   * node id, and the version of a status message received by a node is in a primitive map. The sets
+   * returned by getReceived are built on each call, and can't be modified.
+   *
+   * <p>If 'expiryMs' is not zero, a message is forgotten 'expiryMs' after its first reception: if
+   * it's received again, it will be sent again to the peers. The status messages don't expire.
+   */
+  final class Compact<TN extends P2PNode<TN>> implements FloodStore<TN> {
+    private final Network<TN> network;
+    private final int expiryMs;
+    private int nextExpiry;
+
+    private static final class Receivers {
+      final int firstReception;
+      final BitSet nodes = new BitSet();
+
+      Receivers(int firstReception) {
+        this.firstReception = firstReception;
+      }
+    }
+
+    /** The receivers of each message, by message id, in order of first reception. */
+    private final Map<Long, Map<FloodMessage<?>, Receivers>> receivers = new HashMap<>();
+
+    /** The number of messages received, by message id then by node id. */
+    private final Map<Long, int[]> counts = new HashMap<>();
+
+    /** The version of a status message received by a node, by (nodeId << 32) + msgId. */
+    private final LongIntHashMap statusSeqs = new LongIntHashMap();
+
+    /** The status messages, by msgId then by seq. The first one received for each version. */
+    private final Map<Long, Map<Integer, StatusFloodMessage<?>>> statusMsgs = new HashMap<>();
+
+    public Compact(Network<TN> network, int expiryMs) {
+      if (expiryMs < 0) {
+        throw new IllegalArgumentException("expiryMs=" + expiryMs);
+      }
+      this.network = network;
+      this.expiryMs = expiryMs;
+      this.nextExpiry = expiryMs;
+    }
+
+    @Override
+    public boolean add(TN node, FloodMessage<TN> m) {
+      if (expiryMs > 0 && network.time >= nextExpiry) {
+        expire(network.time - expiryMs);
+        nextExpiry = network.time + expiryMs;
+      }
+
+      Receivers r =
+          receivers
+              .computeIfAbsent(m.msgId(), k -> new LinkedHashMap<>())
+              .computeIfAbsent(m, k -> new Receivers(network.time));
+      if (r.nodes.get(node.nodeId)) {
+        return false;
+      }
+      r.nodes.set(node.nodeId);
+      int[] c = counts.computeIfAbsent(m.msgId(), k -> new int[0]);
+      if (c.length <= node.nodeId) {
+        c = Arrays.copyOf(c, Math.max(node.nodeId + 1, c.length * 2));
+        counts.put(m.msgId(), c);
+      }
+      c[node.nodeId]++;
+      return true;
+    }
+
+    /**
+     * Forgets the messages received for the first time before 'limit'. The message ids without any
+     * message left are removed, with their counts.
+     */
+    private void expire(int limit) {
+      Iterator<Map.Entry<Long, Map<FloodMessage<?>, Receivers>>> ite =
+          receivers.entrySet().iterator();
+      while (ite.hasNext()) {
+        Map.Entry<Long, Map<FloodMessage<?>, Receivers>> e = ite.next();
+        int[] c = counts.get(e.getKey());
+        Iterator<Receivers> it = e.getValue().values().iterator();
+        while (it.hasNext()) {
+          Receivers r = it.next();
+          if (r.firstReception >= limit) {
+            break;
+          }
+          for (int id = r.nodes.nextSetBit(0); id >= 0; id = r.nodes.nextSetBit(id + 1)) {
+            c[id]--;
+          }
+          it.remove();
+        }
+        if (e.getValue().isEmpty()) {
+          counts.remove(e.getKey());
+          ite.remove();
+        }
+      }
+    }
+
+    /** @return the number of message ids with messages not expired yet, for the tests. */
+    int size() {
+      return receivers.size();
+    }
+
+    /** The status messages have positive int ids. */
+    private static boolean isStatusId(long msgId) {
+      return msgId >= 0 && msgId <= Integer.MAX_VALUE;
+    }
+
+    private static long statusKey(Node node, long msgId) {
+      return ((long) node.nodeId << 32) + msgId;
+    }
+
+    @Override
+    public boolean addStatus(TN node, StatusFloodMessage<TN> m) {
+      long key = statusKey(node, m.msgId());
+      if (statusSeqs.containsKey(key) && statusSeqs.get(key, 0) >= m.seq()) {
+        return false;
+      }
+      statusSeqs.put(key, m.seq());
+      statusMsgs.computeIfAbsent(m.msgId(), k -> new HashMap<>()).putIfAbsent(m.seq(), m);
+      return true;
+    }
+
+    @Override
+    public Set<FloodMessage<?>> getReceived(P2PNode<TN> node, long msgId) {
+      Set<FloodMessage<?>> res = new HashSet<>();
+      long key = statusKey(node, msgId);
+      if (isStatusId(msgId) && statusSeqs.containsKey(key)) {
+        res.add(statusMsgs.get(msgId).get(statusSeqs.get(key, 0)));
+      }
+      for (Map.Entry<FloodMessage<?>, Receivers> e :
+          receivers.getOrDefault(msgId, Collections.emptyMap()).entrySet()) {
+        if (e.getValue().nodes.get(node.nodeId)) {
+          res.add(e.getKey());
+        }
+      }
+      return Collections.unmodifiableSet(res);
+    }
+
+    @Override
+    public int getReceivedCount(P2PNode<TN> node, long msgId) {
+      int[] c = counts.get(msgId);
+      int res = c != null && node.nodeId < c.length ? c[node.nodeId] : 0;
+      return isStatusId(msgId) && statusSeqs.containsKey(statusKey(node, msgId)) ? res + 1 : res;
+    }
+  }
+}
@@ -1,26 +1,41 @@
 package net.consensys.wittgenstein.core;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import net.consensys.wittgenstein.core.messages.*;
+import net.consensys.wittgenstein.core.utils.LongRadixSort;
+import net.consensys.wittgenstein.core.utils.SplitMixRandom;
 
 /**
  * There is a single network for a simulation.
  *
- * <p>Nothing is executed in parallel, so the code does not have to be multithread safe.
+ * <p>By default nothing is executed in parallel, so the code does not have to be multithread safe.
+ * See setBatchParallelism for the exception.
  */
 @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
 public class Network<TN extends Node> {
   static final int duration = 60 * 1000;
 
   /** The messages in transit. Sorted by their arrival time. */
-  public final MessageStorage msgs = new MessageStorage();
+  public final MessageStorage msgs = new MessageStorage(new EventQueue.TimingWheel());
 
   /**
    * In parallel of the messages, we have tasks. It's mixed with messages (some tasks are managed as
-   * special messages). Conditional tasks are in a specific list.
+   * special messages). Conditional tasks are in a specific scheduler.
    */
-  public final List<ConditionalTask<TN>> conditionalTasks = new LinkedList<>();
+  final ConditionalTaskScheduler<TN> conditionalTasks = new ConditionalTaskScheduler<>();
+
+  final Timers<TN> timers = new Timers<>(this);
+
+  /** The requests waiting for their answer. See request. */
+  final PendingRequests pendingRequests = new PendingRequests();
+
+  /** The timer slot for the timeouts of the requests, -1 until a request has a timeout. */
+  private int requestTimeoutSlot = -1;
+
+  private Coalescing coalescing = Coalescing.NONE;
+  private final Coalescer coalescer = new Coalescer();
 
   /**
    * Internal variable. Nodes id are sequential & start at zero, so we can we index them in an
@@ -28,11 +43,82 @@ public class Network<TN extends Node> {
    */
   public final List<TN> allNodes = new ArrayList<>(2048);
 
-  /** By using a single random generator, we have repeatable runs. */
-  public final Random rd = new Random(0);
+  /**
+   * By using a single random generator, we have repeatable runs. With useRandomStreams, it's
+   * replaced by a stream derived from its seed.
+   */
+  public final Random rd =
+      new Random(0) {
+        @Override
+        protected int next(int bits) {
+          if (parallel != null && parallel.inPhase) {
+            throw new IllegalStateException("The random generator can't be used in parallel");
+          }
+          return rootStream == null
+              ? super.next(bits)
+              : (int) (rootStream.nextLong() >>> (64 - bits));
+        }
+
+        @Override
+        public void setSeed(long seed) {
+          super.setSeed(seed);
+          rdSeed = seed;
+          if (rootStream != null) {
+            resetStreams();
+          }
+        }
+      };
+
+  /** How the Coalescable messages are coalesced, see setCoalescing. */
+  public enum Coalescing {
+    /** The default: the messages are never coalesced. */
+    NONE,
+    /** The statistics count the coalesced messages one by one, with their own size. */
+    COUNT_MESSAGES,
+    /** The statistics count a single message, with the size of the merged message. */
+    COUNT_ENVELOPES
+  }
+
+  /** The purposes of the random streams of a node, see getRandom. */
+  public enum RandomStream {
+    LATENCY,
+    PROTOCOL,
+    SHUFFLE
+  }
+
+  private static final int RANDOM_STREAMS = RandomStream.values().length;
+
+  /** The last seed of rd. Set while rd is constructed, so without initializer. */
+  private long rdSeed;
+
+  /** Null if all the random numbers come from rd, as it's the case by default. */
+  private SplitMixRandom rootStream;
+
+  /** The streams of the nodes, created on their first use, by nodeId * RandomStream count. */
+  private SplitMixRandom[] nodeStreams = new SplitMixRandom[0];
+
+  /** Not null if the deliveries are executed on multiple threads. */
+  BatchParallelEngine<TN> parallel;
 
   final List<Integer> partitionsInX = new ArrayList<>();
 
+  /**
+   * The partition of each node, by node id. Only used when there is a partition: most of the time
+   * all the nodes are in the same partition and we don't even look at it.
+   */
+  private int[] nodePartitions = new int[0];
+
+  /** Working arrays of the send methods, kept between the calls. */
+  private int[] destIds = new int[0];
+
+  private int[] sendIds = new int[0];
+  private int[] sendTimes = new int[0];
+  private int[] sendLinkValues = new int[0];
+  private int[] latencies = new int[0];
+  private long[] sortKeys = new long[0];
+  private long[] sortBuffer = new long[0];
+  private final int[] sortCounts = LongRadixSort.newCounts();
+
   /**
    * We can decide to discard messages that would take too long to arrive. This limit the memory
    * consumption of the simulator as well.
@@ -106,142 +192,67 @@ public class Network<TN extends Node> {
   }
 
   /**
-   * A desperate attempt to have something less memory consuming than a PriorityQueue or a guava
-   * multimap, by using raw array. The idea is to optimize the case when there are multiple messages
-   * in the same millisecond, but the global time range for all messages is limited.
-   *
-   * <p>The second idea is to have a repeatable run when there are multiple messages arriving at the
-   * same millisecond.
+   * The envelopes in transit, sorted by arrival time. The storage itself is delegated to an
+   * EventQueue, by default a TimingWheel.
    */
-  final class MsgsSlot {
-    final int startTime;
-    final int endTime;
-    final Envelope<?>[] msgsByMs = new Envelope[duration];
+  public final class MessageStorage {
+    EventQueue queue;
 
-    public MsgsSlot(int startTime) {
-      this.startTime = startTime - (startTime % duration);
-      this.endTime = startTime + duration;
-    }
+    /**
+     * Counters updated when envelopes are added or polled, so we don't have to go through the queue
+     * to know its size.
+     */
+    private int envelopes = 0;
 
-    private int getPos(int aTime) {
-      if (aTime < startTime || aTime >= startTime + duration) {
-        throw new IllegalArgumentException(
-            "aTime=" + aTime + ", startTime=" + startTime + ", duration=" + duration);
-      }
-      return (aTime % duration);
-    }
-
-    public void addMsg(Envelope<?> m) {
-      int aTime = m.nextArrivalTime(Network.this);
-      if (aTime < time) {
-        throw new IllegalStateException(
-            "Can't add a message arriving in the past! time="
-                + time
-                + ", arriving at "
-                + aTime
-                + ", m="
-                + m);
-      }
-      int pos = getPos(aTime);
-      m.setNextSameTime(msgsByMs[pos]);
-      msgsByMs[pos] = m;
-    }
+    private long pendingDeliveries = 0;
+    private int[] envelopesByMinute = new int[16];
 
-    public Envelope<?> peek(int time) {
-      int pos = getPos(time);
-      return msgsByMs[pos];
+    MessageStorage(EventQueue queue) {
+      setQueue(queue);
     }
 
-    public Envelope<?> poll(int time) {
-      int pos = getPos(time);
-      Envelope<?> m = msgsByMs[pos];
-      if (m != null) {
-        msgsByMs[pos] = m.getNextSameTime();
+    void setQueue(EventQueue queue) {
+      if (queue.network != null && queue.network != Network.this) {
+        throw new IllegalArgumentException("This queue is already used by another network");
       }
-      return m;
+      queue.setNetwork(Network.this);
+      this.queue = queue;
     }
 
+    /** @return the number of envelopes in transit. A message sent to multiple nodes counts once. */
     public int size() {
-      int size = 0;
-      for (int i = 0; i < duration; i++) {
-        int ss = 0;
-        Envelope m = msgsByMs[i];
-        while (m != null) {
-          ss++;
-          m = m.getNextSameTime();
-        }
-        size += ss;
-      }
-      return size;
+      return envelopes;
     }
 
-    Envelope<?> peekFirst() {
-      for (int i = 0; i < duration; i++) {
-        if (msgsByMs[i] != null) {
-          return msgsByMs[i];
-        }
-      }
-      return null;
+    /**
+     * @return the number of deliveries to come, i.e. the number of nodes that will still receive a
+     *     message in transit.
+     */
+    public long pendingDeliveries() {
+      return pendingDeliveries;
     }
 
-    List<EnvelopeInfo<?>> infos() {
-      List<EnvelopeInfo<?>> res = new ArrayList<>();
-
-      for (int i = 0; i < duration; i++) {
-        Envelope<?> m = msgsByMs[i];
-        while (m != null) {
-          res.addAll(m.infos(Network.this));
-          m = m.getNextSameTime();
-        }
-      }
-      return res;
+    /**
+     * @return the number of envelopes with their next arrival in this minute (i.e. at a time
+     *     between minute * 60s included and (minute + 1) * 60s excluded).
+     */
+    public int sizeInMinute(int minute) {
+      return minute < 0 || minute >= envelopesByMinute.length ? 0 : envelopesByMinute[minute];
     }
-  }
-
-  public final class MessageStorage {
-    public final ArrayList<MsgsSlot> msgsBySlot = new ArrayList<>();
 
-    public int size() {
-      int size = 0;
-      for (MsgsSlot ms : msgsBySlot) {
-        size += ms.size();
+    private void count(Envelope<?> m, int arrival, int sign) {
+      int minute = arrival / duration;
+      if (minute >= envelopesByMinute.length) {
+        envelopesByMinute =
+            Arrays.copyOf(envelopesByMinute, Math.max(minute + 1, envelopesByMinute.length * 2));
       }
-      return size;
+      envelopesByMinute[minute] += sign;
+      envelopes += sign;
+      pendingDeliveries += sign * m.remainingReaders();
     }
 
     public int sizeAt(int time) {
-      int size = 0;
-      Envelope<?> cur = peek(time);
-      while (cur != null) {
-        size++;
-        cur = cur.getNextSameTime();
-      }
-      return size;
-    }
-
-    void cleanup() {
-      while (!msgsBySlot.isEmpty() && time >= msgsBySlot.get(0).endTime) {
-        msgsBySlot.remove(0);
-      }
-      if (msgsBySlot.isEmpty()) {
-        msgsBySlot.add(new MsgsSlot(time));
-      }
-    }
-
-    void ensureSize(int aTime) {
-      while (msgsBySlot.get(msgsBySlot.size() - 1).endTime <= aTime) {
-        msgsBySlot.add(new MsgsSlot(msgsBySlot.get(msgsBySlot.size() - 1).endTime));
-      }
-    }
-
-    MsgsSlot findSlot(int aTime) {
-      cleanup();
-      ensureSize(aTime);
-      int pos = (aTime - msgsBySlot.get(0).startTime) / duration;
-      if (pos >= msgsBySlot.size()) {
-        throw new IllegalStateException("pos=" + pos + ", size=" + msgsBySlot.size());
-      }
-      return msgsBySlot.get(pos);
+      return queue.sizeAt(time);
     }
 
     void addMsg(Envelope<?> m) {
@@ -250,37 +261,46 @@ public class Network<TN extends Node> {
         throw new IllegalStateException(
             "Arriving in the past: arrival=" + na + ", time=" + time + ", msg=" + m);
       }
-      MsgsSlot slot = findSlot(na);
-      slot.addMsg(m);
+      queue.add(m, na);
+      count(m, na, 1);
     }
 
     Envelope<?> peek(int time) {
-      return findSlot(time).peek(time);
+      return queue.peek(time);
     }
 
     Envelope<?> poll(int time) {
-      return findSlot(time).poll(time);
+      Envelope<?> m = queue.poll(time);
+      if (m != null) {
+        count(m, time, -1);
+      }
+      return m;
     }
 
     public void clear() {
-      msgsBySlot.clear();
-      cleanup();
+      queue.clear();
+      coalescer.clear();
+      envelopes = 0;
+      pendingDeliveries = 0;
+      Arrays.fill(envelopesByMinute, 0);
+    }
+
+    /**
+     * @return a time such as no envelope arrives between aTime (included) and this time (excluded).
+     *     Integer.MAX_VALUE if there is no envelope at all.
+     */
+    int nextArrivalTime(int aTime) {
+      return queue.nextArrivalTime(aTime);
     }
 
     /** @return the first message in the queue, null if the queue is empty. */
     Envelope<?> peekFirst() {
-      for (MsgsSlot ms : msgsBySlot) {
-        Envelope<?> m = ms.peekFirst();
-        if (m != null) return m;
-      }
-      return null;
+      return queue.peekFirst();
     }
 
     public List<EnvelopeInfo<?>> peekMessages() {
       List<EnvelopeInfo<?>> res = new ArrayList<>();
-      for (MsgsSlot ms : msgsBySlot) {
-        res.addAll(ms.infos());
-      }
+      queue.forEach(m -> res.addAll(m.infos(Network.this)));
       Collections.sort(res);
       return res;
     }
@@ -294,6 +314,10 @@ public class Network<TN extends Node> {
     /** @return the first message in the queue, null if the queue is empty. */
     public Envelope<?> pollFirst() {
       Envelope<?> m = peekFirst();
+      if (m instanceof Envelope.CoalescedEnvelope) {
+        // It's removed before its arrival time: no message can be merged in it anymore.
+        ((Envelope.CoalescedEnvelope<?>) m).closed = true;
+      }
       return m == null ? null : poll(m.nextArrivalTime(Network.this));
     }
   }
@@ -373,11 +397,52 @@ public class Network<TN extends Node> {
     if (toNode.nodeId >= allNodes.size() || getNodeById(toNode.nodeId) != toNode) {
       throw new IllegalArgumentException("The from node is not in the network. To=" + toNode);
     }
+    checkSendTime(mc, sendTime);
+    // The counters are updated immediately, even when the send is deferred: the node can read them.
+    fromNode.addMsgSent(mc.size());
+    if (parallel != null
+        && parallel.defer(
+            () -> sendCounted(mc, sendTime, fromNode, toNode),
+            fromNode == toNode ? sendTime + 1 : Integer.MAX_VALUE)) {
+      return;
+    }
+    sendCounted(mc, sendTime, fromNode, toNode);
+  }
 
-    MessageArrival ms = createMessageArrival(mc, fromNode, toNode, sendTime, rd.nextInt());
-    if (ms != null) {
-      Envelope<?> m = new Envelope.SingleDestEnvelope<>(mc, fromNode, toNode, sendTime, ms.arrival);
-      msgs.addMsg(m);
+  /** Sends a message already counted in the statistics of the sender. */
+  @SuppressWarnings("unchecked")
+  private void sendCounted(Message<? extends TN> mc, int sendTime, TN fromNode, TN toNode) {
+    int arrival = arrivalTime(fromNode, toNode, sendTime, nextLatencySeed(fromNode));
+    if (arrival >= 0) {
+      if (coalescing != Coalescing.NONE && mc instanceof Coalescable) {
+        sendCoalesced((Message<TN>) mc, fromNode, toNode, sendTime, arrival);
+      } else {
+        Envelope<?> m = new Envelope.SingleDestEnvelope<>(mc, fromNode, toNode, sendTime, arrival);
+        msgs.addMsg(m);
+      }
+    }
+  }
+
+  /** Merges the message with the last one sent to the same node if it arrives at the same time. */
+  @SuppressWarnings("unchecked")
+  private void sendCoalesced(Message<TN> mc, TN fromNode, TN toNode, int sendTime, int arrival) {
+    Envelope.CoalescedEnvelope<TN> ce =
+        (Envelope.CoalescedEnvelope<TN>)
+            coalescer.get(fromNode.nodeId, toNode.nodeId, arrival, time);
+    Message<TN> previous = ce == null ? null : ce.getMessage();
+    Message<TN> merged =
+        previous instanceof Coalescable ? ((Coalescable<TN>) previous).coalesce(mc) : null;
+
+    if (merged == null) {
+      ce = new Envelope.CoalescedEnvelope<>(mc, fromNode.nodeId, toNode.nodeId, sendTime, arrival);
+      coalescer.put(ce);
+      msgs.addMsg(ce);
+    } else if (coalescing == Coalescing.COUNT_MESSAGES) {
+      ce.coalesce(merged, ce.messageCount() + 1, ce.messageSize() + mc.size());
+    } else {
+      // The sender counted this message when it was sent: it's now part of the previous one.
+      fromNode.addMsgSent(merged.size() - previous.size() - mc.size(), -1);
+      ce.coalesce(merged, 1, merged.size());
     }
   }
 
@@ -386,26 +451,146 @@ public class Network<TN extends Node> {
       throw new IllegalArgumentException(
           "wrong arrival time: arriveAt=" + arriveAt + ", time=" + time);
     }
+    if (parallel != null
+        && parallel.defer(() -> sendArriveAt(mc, arriveAt, fromNode, toNode), arriveAt)) {
+      return;
+    }
     msgs.addMsg(new Envelope.SingleDestEnvelope<>(mc, fromNode, toNode, time, arriveAt));
   }
 
-  static final class MessageArrival implements Comparable<MessageArrival> {
-    final Node dest;
-    final int arrival;
+  /** Sends a request without timeout: see the other 'request'. */
+  public void request(RequestMessage<TN, ?> m, TN fromNode, TN toNode) {
+    request(m, fromNode, toNode, 0);
+  }
+
+  /**
+   * Sends a request to 'toNode'. The network calculates the answer when the request arrives, and
+   * sends it back to 'fromNode' in the same envelope, see RequestMessage. The request is sent at
+   * time + 1, as with 'send'. The nodes with an External can't answer requests.
+   *
+   * @param timeout - if not zero, RequestMessage#onTimeout is called if the answer has not arrived
+   *     'timeout' milliseconds after the request has been sent. It's called even if the request or
+   *     the answer has been lost.
+   */
+  public void request(RequestMessage<TN, ?> m, TN fromNode, TN toNode, int timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout=" + timeout);
+    }
+    if (toNode.getExternal() != null) {
+      throw new IllegalArgumentException("The nodes with an External can't answer a request");
+    }
+    fromNode.addMsgSent(m.size());
+    if (parallel != null
+        && parallel.defer(
+            () -> requestCounted(m, fromNode, toNode, timeout),
+            Math.min(
+                fromNode == toNode ? time + 2 : Integer.MAX_VALUE,
+                timeout > 0 ? time + timeout : Integer.MAX_VALUE))) {
+      return;
+    }
+    requestCounted(m, fromNode, toNode, timeout);
+  }
+
+  /** Sends a request already counted in the statistics of the sender. */
+  private void requestCounted(RequestMessage<TN, ?> m, TN fromNode, TN toNode, int timeout) {
+    long timeoutId = 0;
+    if (timeout > 0) {
+      if (requestTimeoutSlot < 0) {
+        requestTimeoutSlot = timers.addIdCallback(this::onRequestTimeout);
+      }
+      timeoutId = timers.newId(requestTimeoutSlot, fromNode.nodeId);
+      timers.add(timeoutId, requestTimeoutSlot, time + timeout);
+    }
+
+    int randomSeed = nextLatencySeed(fromNode);
+    int arrival = arrivalTime(fromNode, toNode, time + 1, randomSeed);
+    Envelope.RequestEnvelope<TN> re =
+        new Envelope.RequestEnvelope<>(
+            m,
+            fromNode.nodeId,
+            toNode.nodeId,
+            time + 1,
+            arrival < 0 ? time + 1 : arrival,
+            randomSeed,
+            timeoutId);
+    pendingRequests.add(re);
+    if (arrival >= 0) {
+      msgs.addMsg(re);
+    } else {
+      requestLost(re);
+    }
+  }
+
+  /** @return the number of requests sent by this node and still waiting for their answer. */
+  public int pendingRequests(TN node) {
+    return pendingRequests.count(node.nodeId);
+  }
 
-    public MessageArrival(Node dest, int arrival) {
-      this.dest = dest;
-      this.arrival = arrival;
+  /**
+   * The request or its answer won't arrive. If there is a timeout, the request is still pending:
+   * the node sending the request doesn't know it.
+   */
+  private void requestLost(Envelope.RequestEnvelope<TN> re) {
+    if (re.timeoutId == 0) {
+      pendingRequests.remove(re);
     }
+  }
 
-    @Override
-    public String toString() {
-      return "MessageArrival{" + "dest=" + dest + ", arrival=" + arrival + '}';
+  @SuppressWarnings("unchecked")
+  private void onRequestTimeout(TN node, long timeoutId) {
+    Envelope.RequestEnvelope<TN> re =
+        (Envelope.RequestEnvelope<TN>) pendingRequests.removeByTimeout(timeoutId);
+    if (re != null && !node.isDown()) {
+      re.message.onTimeout(this, node, allNodes.get(re.responderId));
     }
+  }
 
-    @Override
-    public int compareTo(Network.MessageArrival o) {
-      return Long.compare(arrival, o.arrival);
+  /**
+   * Delivers a request, then puts the envelope back in the queue with the answer, or delivers the
+   * answer.
+   */
+  void deliverRequest(Envelope.RequestEnvelope<TN> re) {
+    TN requester = allNodes.get(re.requesterId);
+    TN responder = allNodes.get(re.responderId);
+    RequestMessage<TN, Object> rm = re.message;
+
+    if (!re.isAnswer()) {
+      if (responder.isDown() || !samePartition(requester, responder)) {
+        requestLost(re);
+        return;
+      }
+      responder.addMsgReceived(rm.size());
+      Object answer = rm.answer(this, requester, responder);
+      if (answer == null) {
+        requestLost(re);
+        return;
+      }
+      int size = rm.answerSize(answer);
+      if (size <= 0) {
+        throw new IllegalStateException("Answer size should be greater than zero: " + rm);
+      }
+      responder.addMsgSent(size);
+      if (!requester.isDown()) {
+        int nt = getLatency(responder, requester, getPseudoRandom(requester.nodeId, re.randomSeed));
+        if (nt < msgDiscardTime) {
+          re.setAnswer(answer, time + 1 + nt);
+          msgs.addMsg(re);
+          return;
+        }
+      }
+      requestLost(re);
+    } else {
+      if (requester.isDown() || !samePartition(requester, responder)) {
+        requestLost(re);
+        return;
+      }
+      requester.addMsgReceived(rm.answerSize(re.getAnswer()));
+      if (pendingRequests.remove(re)) {
+        if (re.timeoutId != 0) {
+          timers.cancel(re.timeoutId);
+        }
+        rm.onAnswer(this, requester, responder, re.getAnswer());
+      }
     }
   }
 
@@ -423,67 +608,251 @@ public class Network<TN extends Node> {
       TN fromNode,
       List<? extends Node> dests,
       int delaysBetweenMessage) {
-    if (fromNode.nodeId >= allNodes.size() || getNodeById(fromNode.nodeId) != fromNode) {
-      throw new IllegalArgumentException("The from node is not in the network. From=" + fromNode);
+    int[] ids = destIdsBuffer(dests.size());
+    for (int i = 0; i < dests.size(); i++) {
+      ids[i] = dests.get(i).nodeId;
     }
+    send(m, sendTime, fromNode, ids, dests.size(), delaysBetweenMessage);
+  }
 
-    int randomSeed = rd.nextInt();
+  /**
+   * Send a message to the nodes of 'dests' but 'exclude', in a random order, without creating a new
+   * list. The random numbers drawn are the same as with a Collections.shuffle on a copy of the list
+   * without 'exclude': rd.nextInt(i) for i from the number of destinations down to 2. So is the
+   * order.
+   *
+   * @param exclude - a node that won't receive the message, typically the node we received the
+   *     message from. Can be null.
+   */
+  public void sendShuffled(
+      Message<? extends TN> m,
+      int sendTime,
+      TN fromNode,
+      List<? extends Node> dests,
+      Node exclude,
+      Random rd,
+      int delaysBetweenMessage) {
+    int[] ids = destIdsBuffer(dests.size());
+    int count = 0;
+    for (int i = 0; i < dests.size(); i++) {
+      Node n = dests.get(i);
+      if (n != exclude) {
+        ids[count++] = n.nodeId;
+      }
+    }
+    for (int i = count; i > 1; i--) {
+      int j = rd.nextInt(i);
+      int t = ids[i - 1];
+      ids[i - 1] = ids[j];
+      ids[j] = t;
+    }
+    send(m, sendTime, fromNode, ids, count, delaysBetweenMessage);
+  }
 
-    List<MessageArrival> da =
-        createMessageArrivals(m, sendTime, fromNode, dests, randomSeed, delaysBetweenMessage);
+  /** Send a message to the nodes with these ids. */
+  public void send(Message<? extends TN> m, int sendTime, TN fromNode, int[] dests) {
+    send(m, sendTime, fromNode, dests, dests.length, 0);
+  }
 
-    if (!da.isEmpty()) {
-      Envelope<?> msg;
-      if (da.size() == 1) {
-        MessageArrival ms = da.get(0);
-        msg = new Envelope.SingleDestEnvelope<>(m, fromNode, ms.dest, sendTime, ms.arrival);
-      } else if (delaysBetweenMessage == 0) {
-        msg = new Envelope.MultipleDestEnvelope<>(m, fromNode, da, sendTime, randomSeed);
-      } else {
-        msg = new Envelope.MultipleDestWithDelayEnvelope<>(m, fromNode, da, sendTime);
+  /** Send a message to the nodes with their id set in the bitset. */
+  public void send(Message<? extends TN> m, int sendTime, TN fromNode, BitSet dests) {
+    int[] ids = destIdsBuffer(dests.cardinality());
+    int size = 0;
+    for (int id = dests.nextSetBit(0); id >= 0; id = dests.nextSetBit(id + 1)) {
+      ids[size++] = id;
+    }
+    send(m, sendTime, fromNode, ids, size, 0);
+  }
+
+  /**
+   * Send a message to the 'count' first nodes of 'dests'. Nothing is allocated but the envelope:
+   * the latencies are calculated in bulk and sorted as primitive values.
+   */
+  public void send(
+      Message<? extends TN> m,
+      int sendTime,
+      TN fromNode,
+      int[] dests,
+      int count,
+      int delaysBetweenMessage) {
+    send(m, sendTime, fromNode, dests, null, count, delaysBetweenMessage);
+  }
+
+  /**
+   * @param linkValues - if not null, the link values between 'fromNode' and each destination for
+   *     the current latency model, see NetworkLatency.LinkValueLatency.
+   */
+  void send(
+      Message<? extends TN> m,
+      int sendTime,
+      TN fromNode,
+      int[] dests,
+      int[] linkValues,
+      int count,
+      int delaysBetweenMessage) {
+    if (fromNode.nodeId >= allNodes.size() || getNodeById(fromNode.nodeId) != fromNode) {
+      throw new IllegalArgumentException("The from node is not in the network. From=" + fromNode);
+    }
+    if (count > 0) {
+      checkSendTime(m, sendTime);
+    }
+    for (int i = 0; i < count; i++) {
+      fromNode.addMsgSent(m.size());
+    }
+    if (parallel != null) {
+      int[] ds = Arrays.copyOf(dests, count);
+      int[] lvs = linkValues == null ? null : Arrays.copyOf(linkValues, count);
+      boolean toSelf = false;
+      for (int d : ds) {
+        toSelf |= d == fromNode.nodeId;
+      }
+      if (parallel.defer(
+          () -> sendCounted(m, sendTime, fromNode, ds, lvs, ds.length, delaysBetweenMessage),
+          toSelf ? sendTime + 1 : Integer.MAX_VALUE)) {
+        return;
       }
-      msgs.addMsg(msg);
     }
+    sendCounted(m, sendTime, fromNode, dests, linkValues, count, delaysBetweenMessage);
   }
 
-  List<MessageArrival> createMessageArrivals(
+  /** Sends a message already counted in the statistics of the sender. */
+  private void sendCounted(
       Message<? extends TN> m,
       int sendTime,
       TN fromNode,
-      List<? extends Node> dests,
-      int randomSeed,
+      int[] dests,
+      int[] linkValues,
+      int count,
       int delaysBetweenMessage) {
-    ArrayList<MessageArrival> da = new ArrayList<>(dests.size());
-    for (Node n : dests) {
-      MessageArrival ma = createMessageArrival(m, fromNode, n, sendTime, randomSeed);
-      sendTime += delaysBetweenMessage + (delaysBetweenMessage > 0 ? 1 : 0);
-      if (ma != null) {
-        da.add(ma);
+    int randomSeed = nextLatencySeed(fromNode);
+    if (count == 0) {
+      return;
+    }
+
+    // We keep only the nodes that will receive the message, with their send time.
+    sendIds = ensureSize(sendIds, count);
+    sendTimes = ensureSize(sendTimes, count);
+    int[] ids = sendIds;
+    int[] times = sendTimes;
+    int[] lvs = null;
+    if (linkValues != null && networkLatency instanceof NetworkLatency.LinkValueLatency) {
+      sendLinkValues = ensureSize(sendLinkValues, count);
+      lvs = sendLinkValues;
+    }
+    int size = 0;
+    int st = sendTime;
+    for (int i = 0; i < count; i++) {
+      Node to = allNodes.get(dests[i]);
+      if (samePartition(fromNode, to) && !fromNode.isDown() && !to.isDown()) {
+        ids[size] = to.nodeId;
+        times[size] = st;
+        if (lvs != null) {
+          lvs[size] = linkValues[i];
+        }
+        size++;
+      }
+      st += delaysBetweenMessage + (delaysBetweenMessage > 0 ? 1 : 0);
+    }
+
+    latencies = ensureSize(latencies, size);
+    int[] lats = latencies;
+    if (lvs != null) {
+      NetworkLatency.LinkValueLatency model = (NetworkLatency.LinkValueLatency) networkLatency;
+      for (int i = 0; i < size; i++) {
+        Node to = allNodes.get(ids[i]);
+        lats[i] = model.getLatency(fromNode, to, lvs[i], getPseudoRandom(ids[i], randomSeed));
       }
+    } else {
+      getLatencies(fromNode, ids, size, randomSeed, lats);
     }
-    Collections.sort(da);
 
-    return da;
+    // Sorted by arrival time, then by position: the order is the same as with a stable sort.
+    sortKeys = ensureSize(sortKeys, size);
+    long[] keys = sortKeys;
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (lats[i] < msgDiscardTime) {
+        long arrival = (long) times[i] + lats[i] - sendTime;
+        keys[kept++] = (arrival << 32) | i;
+      }
+    }
+    if (kept == 0) {
+      return;
+    }
+    sortBuffer = ensureSize(sortBuffer, kept);
+    LongRadixSort.sort(keys, kept, sortBuffer, sortCounts);
+
+    Envelope<?> msg;
+    if (kept == 1) {
+      int i = (int) keys[0];
+      msg =
+          new Envelope.SingleDestEnvelope<>(
+              m, fromNode.nodeId, ids[i], sendTime, times[i] + lats[i]);
+    } else {
+      int[] envIds = new int[kept];
+      for (int k = 0; k < kept; k++) {
+        envIds[k] = ids[(int) keys[k]];
+      }
+      if (delaysBetweenMessage == 0) {
+        msg = new Envelope.MultipleDestEnvelope<>(m, fromNode.nodeId, envIds, sendTime, randomSeed);
+      } else {
+        int[] envArrivals = new int[kept];
+        for (int k = 0; k < kept; k++) {
+          int i = (int) keys[k];
+          envArrivals[k] = times[i] + lats[i];
+        }
+        msg =
+            new Envelope.MultipleDestWithDelayEnvelope<>(
+                m, fromNode.nodeId, envIds, envArrivals, sendTime);
+      }
+    }
+    msgs.addMsg(msg);
   }
 
-  private MessageArrival createMessageArrival(
-      Message<?> m, Node fromNode, Node toNode, int sendTime, int randomSeed) {
-    if (sendTime <= time) {
-      throw new IllegalStateException("" + m + ", sendTime=" + sendTime + ", time=" + time);
+  /** The nodes can send in parallel, but then the send is deferred and the ids are copied. */
+  int[] destIdsBuffer(int size) {
+    if (parallel != null && parallel.inPhase) {
+      return new int[size];
     }
+    destIds = ensureSize(destIds, size);
+    return destIds;
+  }
 
-    assert !(m instanceof Task);
-    fromNode.msgSent++;
-    fromNode.bytesSent += m.size();
-    if (partitionId(fromNode) == partitionId(toNode) && !fromNode.isDown() && !toNode.isDown()) {
-      int nt =
-          networkLatency.getLatency(fromNode, toNode, getPseudoRandom(toNode.nodeId, randomSeed));
+  private static int[] ensureSize(int[] a, int size) {
+    return a.length >= size ? a : new int[Math.max(size, a.length * 2)];
+  }
+
+  private static long[] ensureSize(long[] a, int size) {
+    return a.length >= size ? a : new long[Math.max(size, a.length * 2)];
+  }
+
+  /** @return the arrival time of a message sent at 'sendTime', or -1 if the message is lost. */
+  private int arrivalTime(Node fromNode, Node toNode, int sendTime, int randomSeed) {
+    if (samePartition(fromNode, toNode) && !fromNode.isDown() && !toNode.isDown()) {
+      int nt = getLatency(fromNode, toNode, getPseudoRandom(toNode.nodeId, randomSeed));
       if (nt < msgDiscardTime) {
-        return new MessageArrival(toNode, sendTime + nt);
+        return sendTime + nt;
       }
     }
 
-    return null;
+    return -1;
+  }
+
+  private void checkSendTime(Message<?> m, int sendTime) {
+    if (sendTime <= time) {
+      throw new IllegalStateException("" + m + ", sendTime=" + sendTime + ", time=" + time);
+    }
+    assert !(m instanceof Task);
+  }
+
+  /** @return the latency between these two nodes, as given by the network latency model. */
+  int getLatency(Node from, Node to, int delta) {
+    return networkLatency.getLatency(from, to, delta);
+  }
+
+  /** Calculates the latencies for a message sent to multiple nodes, see NetworkLatency. */
+  void getLatencies(TN from, int[] dests, int count, int randomSeed, int[] out) {
+    networkLatency.getLatencies(allNodes, from, dests, count, randomSeed, out);
   }
 
   /**
@@ -503,21 +872,91 @@ public class Network<TN extends Node> {
   }
 
   public void registerTask(final Runnable task, int startAt, TN fromNode) {
+    if (parallel != null && parallel.defer(() -> registerTask(task, startAt, fromNode), startAt)) {
+      return;
+    }
     Task<TN> sw = new Task<>(task);
     msgs.addMsg(new Envelope.SingleDestEnvelope<>(sw, fromNode, fromNode, time, startAt));
   }
 
   public void registerPeriodicTask(final Runnable task, int startAt, int period, TN fromNode) {
+    if (parallel != null
+        && parallel.defer(() -> registerPeriodicTask(task, startAt, period, fromNode), startAt)) {
+      return;
+    }
     PeriodicTask<TN> sw = new PeriodicTask<>(task, fromNode, period);
     msgs.addMsg(new Envelope.SingleDestEnvelope<>(sw, fromNode, fromNode, time, startAt));
   }
 
   public void registerPeriodicTask(
       final Runnable task, int startAt, int period, TN fromNode, Condition c) {
+    if (parallel != null
+        && parallel.defer(
+            () -> registerPeriodicTask(task, startAt, period, fromNode, c), startAt)) {
+      return;
+    }
     PeriodicTask<TN> sw = new PeriodicTask<>(task, fromNode, period, c);
     msgs.addMsg(new Envelope.SingleDestEnvelope<>(sw, fromNode, fromNode, time, startAt));
   }
 
+  /**
+   * Registers a callback for the timers. The timers are lighter than the tasks: they are not in the
+   * message queue, there is no object per timer, and they are not counted as messages. They are
+   * fired before the messages arriving at the same time.
+   *
+   * @return the slot of this callback, for setTimer and setPeriodicTimer.
+   */
+  public int registerTimerCallback(Consumer<TN> callback) {
+    if (parallel != null && parallel.inPhase) {
+      throw new IllegalStateException("The timer callbacks can't be registered in parallel");
+    }
+    return timers.addCallback(callback);
+  }
+
+  /**
+   * Calls the callback of this slot with 'node' at 'dueTime'.
+   *
+   * @return the id of the timer, for cancelTimer.
+   */
+  public long setTimer(int slot, TN node, int dueTime) {
+    if (dueTime <= time) {
+      throw new IllegalArgumentException("dueTime=" + dueTime + ", time=" + time);
+    }
+    long id = timers.newId(slot, node.nodeId);
+    if (parallel == null || !parallel.defer(() -> timers.add(id, slot, dueTime), dueTime)) {
+      timers.add(id, slot, dueTime);
+    }
+    return id;
+  }
+
+  /**
+   * Calls the callback of this slot every 'period' milliseconds, starting at 'startAt', for all the
+   * nodes of 'nodeIds'. They are called in a single sweep, by node id.
+   *
+   * @return the id of the timer, for cancelTimer.
+   */
+  public long setPeriodicTimer(int slot, BitSet nodeIds, int startAt, int period) {
+    if (parallel != null && parallel.inPhase) {
+      throw new IllegalStateException("The periodic timers can't be set in parallel");
+    }
+    if (startAt <= time) {
+      throw new IllegalArgumentException("startAt=" + startAt + ", time=" + time);
+    }
+    return timers.addGroup(slot, nodeIds, startAt, period);
+  }
+
+  /** Cancels this timer. Nothing happens if it has already been fired or cancelled. */
+  public void cancelTimer(long id) {
+    if (parallel == null || !parallel.defer(() -> timers.cancel(id), time + 1)) {
+      timers.cancel(id);
+    }
+  }
+
+  /** @return the number of timers not fired nor cancelled. A periodic timer counts for one. */
+  public int timerCount() {
+    return timers.size();
+  }
+
   public void registerConditionalTask(
       final Runnable task,
       int startAt,
@@ -525,62 +964,83 @@ public class Network<TN extends Node> {
       TN fromNode,
       Condition startIf,
       Condition repeatIf) {
+    registerConditionalTask(task, startAt, duration, fromNode, startIf, repeatIf, false);
+  }
+
+  /**
+   * @param wakeOnSignal - if true, the task is not checked anymore once 'startIf' is false, until
+   *     wakeUpConditionalTasks is called for this node. The node must call it every time 'startIf'
+   *     may have become true. This saves a lot of checks when there are many nodes.
+   */
+  public void registerConditionalTask(
+      final Runnable task,
+      int startAt,
+      int duration,
+      TN fromNode,
+      Condition startIf,
+      Condition repeatIf,
+      boolean wakeOnSignal) {
+    if (parallel != null
+        && parallel.defer(
+            () ->
+                registerConditionalTask(
+                    task, startAt, duration, fromNode, startIf, repeatIf, wakeOnSignal),
+            time + 1)) {
+      return;
+    }
     ConditionalTask<TN> ct =
         new ConditionalTask<>(startIf, repeatIf, task, startAt, fromNode, duration);
-    conditionalTasks.add(ct);
+    conditionalTasks.register(ct, wakeOnSignal);
+  }
+
+  /**
+   * Signals that the conditions of the tasks registered with 'wakeOnSignal' for this node may have
+   * changed: they will be checked again.
+   */
+  public void wakeUpConditionalTasks(TN node) {
+    if (parallel != null
+        && conditionalTasks.isSleeping(node)
+        && parallel.defer(() -> wakeUpConditionalTasks(node), time + 1)) {
+      return;
+    }
+    conditionalTasks.wakeUp(node);
   }
 
   private Envelope<?> nextMessage(int until) {
-    List<ConditionalTask<TN>> cts = null;
+    boolean checkTasks = false;
 
     while (time <= until) {
+      if (timers.nextDue() <= time) {
+        timers.fire(time);
+      }
       Envelope<?> m = msgs.poll(time);
       if (m != null) {
+        if (checkTasks) {
+          conditionalTasks.endRun();
+        }
         return m;
       } else {
-        time++;
-
-        if (cts == null) {
-          cts = new ArrayList<>(conditionalTasks);
+        if (!checkTasks) {
+          conditionalTasks.startRun(time);
+          checkTasks = true;
         }
 
-        Iterator<ConditionalTask<TN>> it = cts.iterator();
-        while (it.hasNext()) {
-          ConditionalTask<TN> ct = it.next();
-          if (ct.minStartTime > until || ct.from.isDown()) {
-            it.remove();
-            continue;
-          }
+        // Nothing happens until the next message or the next conditional task, so we can
+        //  jump there directly instead of looking at all the empty milliseconds.
+        int nextTime =
+            Math.min(
+                Math.min(msgs.nextArrivalTime(time + 1), timers.nextDue()),
+                Math.max(time + 1, conditionalTasks.nextStartTime()));
+        time = Math.min(nextTime, until + 1);
 
-          if (ct.minStartTime <= time) {
-            it.remove();
-            if (ct.startIf.check()) {
-              assert ct.r != null;
-              ct.r.run();
-              ct.minStartTime = time + ct.duration;
-              if (!ct.repeatIf.check()) {
-                conditionalTasks.remove(ct);
-              }
-            }
-          }
-        }
+        conditionalTasks.check(time, until);
       }
     }
-    return null;
-  }
 
-  private void executeConditionalTask(ConditionalTask<TN> ct) {
-    assert ct.r != null;
-
-    if (ct.startIf.check()) {
-      ct.r.run();
-      ct.minStartTime = time + ct.duration;
-      if (ct.repeatIf.check()) {
-        registerTask(() -> executeConditionalTask(ct), ct.minStartTime, null);
-      }
-    } else {
-      conditionalTasks.add(ct);
+    if (checkTasks) {
+      conditionalTasks.endRun();
     }
+    return null;
   }
 
   @SuppressWarnings("unchecked")
@@ -600,40 +1060,82 @@ public class Network<TN extends Node> {
         }
       }
 
-      TN from = allNodes.get(m.getFromId());
-      TN to = allNodes.get(m.getNextDestId());
+      if (parallel != null) {
+        parallel.runWindow(m, until);
+      } else if (m instanceof Envelope.RequestEnvelope) {
+        deliverRequest((Envelope.RequestEnvelope<TN>) m);
+      } else {
+        TN to = allNodes.get(m.getNextDestId());
+        deliver(
+            allNodes.get(m.getFromId()),
+            to,
+            (Message<TN>) m.getMessage(),
+            m.messageCount(),
+            m.messageSize(),
+            to.getExternal() == null ? null : (EnvelopeInfo<TN>) m.curInfos(this));
+
+        m.markRead();
+        if (m.hasNextReader()) {
+          msgs.addMsg(m);
+        }
+      }
+      previousTime = time;
+      next = nextMessage(until);
+    }
+    return true;
+  }
 
-      if (!to.isDown() && partitionId(from) == partitionId(to)) {
-        if (!(m.getMessage() instanceof Task<?>)) {
-          if (m.getMessage().size() == 0) {
-            throw new IllegalStateException("Message size should be greater than zero: " + m);
-          }
-          to.msgReceived++;
-          to.bytesReceived += m.getMessage().size();
+  /**
+   * @param count - the number of messages received, for the statistics: see Envelope#messageCount.
+   * @param size - the size of the messages received, for the statistics.
+   * @param ei - the envelope info, only used if the destination node has an External.
+   */
+  @SuppressWarnings("unchecked")
+  void deliver(TN from, TN to, Message<TN> mc, int count, int size, EnvelopeInfo<TN> ei) {
+    if (!to.isDown() && samePartition(from, to)) {
+      if (!(mc instanceof Task<?>)) {
+        if (size == 0) {
+          throw new IllegalStateException("Message size should be greater than zero: " + mc);
         }
-        @SuppressWarnings("unchecked")
-        Message<TN> mc = (Message<TN>) m.getMessage();
-        if (to.getExternal() != null) {
-          EnvelopeInfo<TN> ei = (EnvelopeInfo<TN>) m.curInfos(this);
-          List<SendMessage> sms = to.getExternal().receive(ei);
-          for (SendMessage sm : sms) {
-            List<TN> dest = sm.to.stream().map(this::getNodeById).collect(Collectors.toList());
-            Message<TN> mtn = (Message<TN>) sm.message;
-            send(mtn, sm.sendTime, getNodeById(sm.from), dest, sm.delayBetweenSend);
-          }
-        } else {
-          mc.action(this, from, to);
+        to.addMsgReceived(size, count);
+      }
+      if (to.getExternal() != null) {
+        List<SendMessage> sms = to.getExternal().receive(ei);
+        for (SendMessage sm : sms) {
+          List<TN> dest = sm.to.stream().map(this::getNodeById).collect(Collectors.toList());
+          Message<TN> mtn = (Message<TN>) sm.message;
+          send(mtn, sm.sendTime, getNodeById(sm.from), dest, sm.delayBetweenSend);
         }
+      } else {
+        mc.action(this, from, to);
       }
+    }
+  }
 
-      m.markRead();
-      if (m.hasNextReader()) {
-        msgs.addMsg(m);
+  boolean samePartition(Node n1, Node n2) {
+    if (partitionsInX.isEmpty()) {
+      return true;
+    }
+    if (n1.nodeId < nodePartitions.length
+        && n2.nodeId < nodePartitions.length
+        && allNodes.get(n1.nodeId) == n1
+        && allNodes.get(n2.nodeId) == n2) {
+      return nodePartitions[n1.nodeId] == nodePartitions[n2.nodeId];
+    }
+    return partitionId(n1) == partitionId(n2);
+  }
+
+  private void updateNodePartitions() {
+    if (partitionsInX.isEmpty()) {
+      nodePartitions = new int[0];
+      return;
+    }
+    nodePartitions = new int[allNodes.size()];
+    for (TN n : allNodes) {
+      if (n != null) {
+        nodePartitions[n.nodeId] = partitionId(n);
       }
-      previousTime = time;
-      next = nextMessage(until);
     }
-    return true;
   }
 
   int partitionId(Node to) {
@@ -656,6 +1158,62 @@ public class Network<TN extends Node> {
       throw new IllegalStateException("There is already a node with this id (" + node.nodeId + ")");
     }
     allNodes.set(node.nodeId, node);
+    if (!partitionsInX.isEmpty()) {
+      if (nodePartitions.length <= node.nodeId) {
+        nodePartitions =
+            Arrays.copyOf(nodePartitions, Math.max(allNodes.size(), nodePartitions.length * 2));
+      }
+      nodePartitions[node.nodeId] = partitionId(node);
+    }
+    timers.ensureNodes(allNodes.size());
+    int streams = allNodes.size() * RANDOM_STREAMS;
+    if (rootStream != null && nodeStreams.length < streams) {
+      nodeStreams = Arrays.copyOf(nodeStreams, Math.max(streams, nodeStreams.length * 2));
+    }
+  }
+
+  /**
+   * Uses a stream per node and per purpose instead of a single random generator. The streams, as
+   * well as rd, are derived from the seed of rd: the numbers drawn by a node don't depend anymore
+   * on the numbers drawn by the others, and the generators don't use atomic operations. The results
+   * are not the same as with the single random generator. Must be called before adding the nodes.
+   */
+  public Network<TN> useRandomStreams() {
+    if (!allNodes.isEmpty()) {
+      throw new IllegalStateException("The nodes are already added");
+    }
+    resetStreams();
+    return this;
+  }
+
+  private void resetStreams() {
+    rootStream = new SplitMixRandom(SplitMixRandom.derive(rdSeed, -1));
+    Arrays.fill(nodeStreams, null);
+  }
+
+  /**
+   * @return the random stream of this node for this purpose, or rd if we don't use random streams.
+   *     A stream can be used in parallel (see NodeLocalAction) by the actions of its node only.
+   */
+  public Random getRandom(Node node, RandomStream purpose) {
+    if (rootStream == null) {
+      return rd;
+    }
+    int pos = node.nodeId * RANDOM_STREAMS + purpose.ordinal();
+    if (pos >= nodeStreams.length) {
+      throw new IllegalArgumentException("The node is not in the network. Node=" + node);
+    }
+    SplitMixRandom res = nodeStreams[pos];
+    if (res == null) {
+      res = new SplitMixRandom(SplitMixRandom.derive(rdSeed, pos));
+      nodeStreams[pos] = res;
+    }
+    return res;
+  }
+
+  /** The seed used to calculate the latencies of a message sent by this node. */
+  private int nextLatencySeed(TN fromNode) {
+    return rootStream == null ? rd.nextInt() : getRandom(fromNode, RandomStream.LATENCY).nextInt();
   }
 
   public List<TN> liveNodes() {
@@ -676,6 +1234,98 @@ public class Network<TN extends Node> {
     return this;
   }
 
+  /**
+   * Replaces the latency model by its compiled version, which gives the same latencies faster. It
+   * can be done while messages are in transit.
+   *
+   * @param verify - if true, each latency is calculated with both models and checked.
+   */
+  public Network<TN> compileNetworkLatency(boolean verify) {
+    this.networkLatency =
+        verify
+            ? NetworkLatency.compileAndVerify(networkLatency, this)
+            : networkLatency.compile(this);
+    return this;
+  }
+
+  /**
+   * Merges the Coalescable messages sent by a node to the same node and arriving at the same time:
+   * there are fewer envelopes and fewer calls to 'action'. Only the messages sent to a single node
+   * are coalesced. The results can be different, as the nodes receive merged messages.
+   */
+  public Network<TN> setCoalescing(Coalescing coalescing) {
+    if (parallel != null && coalescing == Coalescing.COUNT_ENVELOPES) {
+      throw new IllegalStateException("The parallel execution can't count the merged messages");
+    }
+    this.coalescing = coalescing;
+    coalescer.clear();
+    return this;
+  }
+
+  /**
+   * Changes the way the messages in transit are stored. There is no impact on the simulation
+   * results: it's only about memory and speed.
+   */
+  public Network<TN> setEventQueue(EventQueue queue) {
+    if (msgs.size() != 0) {
+      throw new IllegalStateException(
+          "You can't change the event queue while the system as on going messages");
+    }
+
+    EventQueue previous = msgs.queue;
+    msgs.setQueue(queue);
+    if (previous != queue) {
+      // The previous queue can hold a spill file
+      previous.close();
+    }
+    return this;
+  }
+
+  /**
+   * Executes the deliveries of each millisecond on multiple threads, or sequentially if 'threads'
+   * is 1. The results are exactly the same as with the sequential execution. Only the messages and
+   * the nodes that implement NodeLocalAction are executed in parallel: the others, as well as the
+   * conditional tasks, are always executed sequentially. See BatchParallelEngine.
+   *
+   * <p>It can't be used with Coalescing.COUNT_ENVELOPES: the sender's statistics of a merged
+   * message are known only when the send is replayed, after the batch.
+   */
+  public Network<TN> setBatchParallelism(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads=" + threads);
+    }
+    if (threads > 1 && coalescing == Coalescing.COUNT_ENVELOPES) {
+      throw new IllegalStateException("The parallel execution can't count the merged messages");
+    }
+    if (parallel != null) {
+      parallel.shutdown();
+    }
+    parallel = threads == 1 ? null : new BatchParallelEngine<>(this, threads);
+    return this;
+  }
+
+  /**
+   * Releases what the network holds outside of the heap: the spill file of the messages (see
+   * setMessageHeapBudget) and the threads of the parallel execution (see setBatchParallelism). Must
+   * be called when a network using them is discarded, for example between the runs of a parameter
+   * sweep: they are not released by the garbage collector. The messages in transit are dropped.
+   */
+  public void close() {
+    msgs.clear();
+    msgs.queue.close();
+    setBatchParallelism(1);
+  }
+
+  /**
+   * Limits the memory used by the messages in transit: once they use more than 'heapBudget' bytes,
+   * the ones arriving in more than 'horizon' milliseconds are stored in a memory-mapped file until
+   * their arrival time gets closer. The results are the same, with or without this budget.
+   */
+  public Network<TN> setMessageHeapBudget(long heapBudget, int horizon) {
+    return setEventQueue(
+        new EventQueue.Spilling(new EventQueue.TimingWheel(), horizon, heapBudget));
+  }
+
   public void printNetworkLatency() {
     System.out.println("" + networkLatency);
     NetworkLatency.MeasuredNetworkLatency mn =
@@ -700,9 +1350,11 @@ public class Network<TN extends Node> {
     }
     partitionsInX.add(xPoint);
     Collections.sort(partitionsInX);
+    updateNodePartitions();
   }
 
   public void endPartition() {
     partitionsInX.clear();
+    updateNodePartitions();
   }
 }
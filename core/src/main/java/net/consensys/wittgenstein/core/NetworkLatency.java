@@ -24,15 +24,156 @@ public abstract class NetworkLatency {
     }
   }
 
+  /**
+   * @return a lower bound of the latency between two different nodes, without their extra latency.
+   *     It's used as a lookahead when the deliveries are executed in parallel, so it must never be
+   *     greater than an actual latency. The default is the minimum latency we allow.
+   */
+  public int getMinLatency() {
+    return 1;
+  }
+
+  /**
+   * Calculates the latencies from one node to many nodes, for a message sent with this random seed.
+   * The result is the same as calling getLatency for each node, but an implementation can share the
+   * work between the destinations.
+   *
+   * @param nodes - all the nodes of the network, by id
+   * @param dests - the ids of the destinations; only the 'count' first are used
+   * @param out - where the latencies are written, in the same order as 'dests'
+   */
+  public void getLatencies(
+      List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+    for (int i = 0; i < count; i++) {
+      Node to = nodes.get(dests[i]);
+      out[i] = getLatency(from, to, Network.getPseudoRandom(to.nodeId, randomSeed));
+    }
+  }
+
+  /**
+   * Compiling a model replaces the calculations that depend only on the delta or the distance by
+   * tables. The compiled model gives exactly the same latencies as this one.
+   *
+   * @return a model to use instead of this one for this network. By default it's this model.
+   */
+  public NetworkLatency compile(Network<?> network) {
+    return this;
+  }
+
+  /**
+   * @return the compiled model, checking for every latency that it's the same as the one given by
+   *     the reference model. It's slower than both, it's here to validate the compiled models.
+   */
+  public static NetworkLatency compileAndVerify(NetworkLatency reference, Network<?> network) {
+    return new VerifiedNetworkLatency(reference, reference.compile(network));
+  }
+
+  static class VerifiedNetworkLatency extends NetworkLatency {
+    final NetworkLatency reference;
+    final NetworkLatency compiled;
+
+    VerifiedNetworkLatency(NetworkLatency reference, NetworkLatency compiled) {
+      this.reference = reference;
+      this.compiled = compiled;
+    }
+
+    @Override
+    protected int getExtendedLatency(Node from, Node to, int delta) {
+      int r = reference.getExtendedLatency(from, to, delta);
+      int c = compiled.getExtendedLatency(from, to, delta);
+      if (r != c) {
+        throw new IllegalStateException(
+            compiled
+                + " gives "
+                + c
+                + " instead of "
+                + r
+                + ", from="
+                + from
+                + ", to="
+                + to
+                + ", delta="
+                + delta);
+      }
+      return r;
+    }
+
+    @Override
+    public void getLatencies(
+        List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+      compiled.getLatencies(nodes, from, dests, count, randomSeed, out);
+      for (int i = 0; i < count; i++) {
+        Node to = nodes.get(dests[i]);
+        int r = reference.getLatency(from, to, Network.getPseudoRandom(to.nodeId, randomSeed));
+        if (r != out[i]) {
+          throw new IllegalStateException(
+              compiled
+                  + " gives "
+                  + out[i]
+                  + " instead of "
+                  + r
+                  + ", from="
+                  + from
+                  + ", to="
+                  + to
+                  + ", randomSeed="
+                  + randomSeed);
+        }
+      }
+    }
+
+    @Override
+    public int getMinLatency() {
+      int r = reference.getMinLatency();
+      int c = compiled.getMinLatency();
+      if (r != c) {
+        throw new IllegalStateException(compiled + " min latency is " + c + " instead of " + r);
+      }
+      return r;
+    }
+
+    @Override
+    public String toString() {
+      return reference.toString();
+    }
+  }
+
   protected int getLatency(Node from, Node to, int delta) {
     if (from == to) {
       return 1;
     }
+    return addExtraLatency(from, to, getExtendedLatency(from, to, delta));
+  }
+
+  /** @return the latency between two different nodes, given their extended latency. */
+  protected static int addExtraLatency(Node from, Node to, int extendedLatency) {
     int base = from.extraLatency + to.extraLatency;
-    base += getExtendedLatency(from, to, delta);
+    base += extendedLatency;
     return Math.max(1, base);
   }
 
+  /**
+   * Implemented by the models that split cleanly in a part depending only on the two nodes, the
+   * 'link value' (a distance, a latency between two cities...), and a part depending on the delta.
+   * Then the link value can be calculated once for the links used many times, like the peers of a
+   * p2p network.
+   */
+  public interface LinkValueLatency {
+    /** @return the part of the latency depending only on these two different nodes. */
+    int getLinkValue(Node from, Node to);
+
+    /** @return the same as getExtendedLatency, for two nodes with this link value. */
+    int getLinkLatency(int linkValue, int delta);
+
+    /** @return the same as getLatency, for two nodes with this link value. */
+    default int getLatency(Node from, Node to, int linkValue, int delta) {
+      if (from == to) {
+        return 1;
+      }
+      return addExtraLatency(from, to, getLinkLatency(linkValue, delta));
+    }
+  }
+
   /**
    * @see <a href="https://pdfs.semanticscholar.org/ff13/5d221678e6b542391c831e87fca56e830a73.pdf"/>
    *     Latency vs. distance: y = 0.022x + 4.862 It's a roundtrip, so we have to divide by two to
@@ -46,7 +187,8 @@ public abstract class NetworkLatency {
    *     it's a roundtrip time.
    *     <p>
    */
-  public static class NetworkLatencyByDistanceWJitter extends NetworkLatency {
+  public static class NetworkLatencyByDistanceWJitter extends NetworkLatency
+      implements LinkValueLatency {
     final GeneralizedParetoDistribution gpd = new GeneralizedParetoDistribution(1.4, -0.3, 0.35);
 
     /** We consider that the worse case is half of the earth perimeter. */
@@ -66,10 +208,116 @@ public abstract class NetworkLatency {
 
     @Override
     public int getExtendedLatency(Node from, Node to, int delta) {
+      return getLinkLatency(from.dist(to), delta);
+    }
+
+    /** @return the distance between the two nodes. */
+    @Override
+    public int getLinkValue(Node from, Node to) {
+      return from.dist(to);
+    }
+
+    @Override
+    public int getLinkLatency(int dist, int delta) {
       checkDelta(delta);
-      double raw = getFixedLatency(from.dist(to)) + getJitter(delta);
+      double raw = getFixedLatency(dist) + getJitter(delta);
       return (int) (raw / 2);
     }
+
+    /** The position of 'from' is read once for all the destinations. */
+    @Override
+    public void getLatencies(
+        List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+      int x = from.x;
+      int y = from.y;
+      for (int i = 0; i < count; i++) {
+        Node to = nodes.get(dests[i]);
+        if (to == from) {
+          out[i] = 1;
+        } else {
+          int delta = Network.getPseudoRandom(to.nodeId, randomSeed);
+          out[i] = addExtraLatency(from, to, getLinkLatency(Node.dist(x, y, to), delta));
+        }
+      }
+    }
+
+    @Override
+    public NetworkLatency compile(Network<?> network) {
+      return new Compiled(new Distances(network.allNodes));
+    }
+
+    /**
+     * The jitter by delta and the fixed latency by distance are read from tables, as well as the
+     * distances between the nodes.
+     */
+    static class Compiled extends NetworkLatencyByDistanceWJitter {
+      private final double[] jitters = new double[100];
+      private final double[] fixedLatencies = new double[Node.MAX_DIST + 1];
+      private final Distances distances;
+
+      Compiled(Distances distances) {
+        this.distances = distances;
+        for (int delta = 0; delta < jitters.length; delta++) {
+          jitters[delta] = super.getJitter(delta);
+        }
+        for (int dist = 0; dist < fixedLatencies.length; dist++) {
+          fixedLatencies[dist] = super.getFixedLatency(dist);
+        }
+      }
+
+      @Override
+      public double getJitter(int delta) {
+        return delta >= 0 && delta < jitters.length ? jitters[delta] : super.getJitter(delta);
+      }
+
+      @Override
+      public double getFixedLatency(int dist) {
+        return dist >= 0 && dist < fixedLatencies.length
+            ? fixedLatencies[dist]
+            : super.getFixedLatency(dist);
+      }
+
+      @Override
+      public int getExtendedLatency(Node from, Node to, int delta) {
+        return getLinkLatency(distances.dist(from, to), delta);
+      }
+
+      @Override
+      public int getLinkValue(Node from, Node to) {
+        return distances.dist(from, to);
+      }
+
+      @Override
+      public void getLatencies(
+          List<? extends Node> nodes,
+          Node from,
+          int[] dests,
+          int count,
+          int randomSeed,
+          int[] out) {
+        int row = distances.row(from);
+        for (int i = 0; i < count; i++) {
+          Node to = nodes.get(dests[i]);
+          if (to == from) {
+            out[i] = 1;
+          } else {
+            int delta = Network.getPseudoRandom(to.nodeId, randomSeed);
+            out[i] =
+                addExtraLatency(from, to, getLinkLatency(distances.dist(row, from, to), delta));
+          }
+        }
+      }
+
+      @Override
+      public NetworkLatency compile(Network<?> network) {
+        return this;
+      }
+
+      @Override
+      public String toString() {
+        return NetworkLatencyByDistanceWJitter.class.getSimpleName();
+      }
+    }
   }
 
   /**
@@ -83,9 +331,9 @@ public abstract class NetworkLatency {
    *
    * @see NodeBuilder.NodeBuilderWithCity
    */
-  public static class AwsRegionNetworkLatency extends NetworkLatency {
+  public static class AwsRegionNetworkLatency extends NetworkLatency implements LinkValueLatency {
     private static HashMap<String, Integer> regionPerCity = new HashMap<>();
-    private NetworkLatencyByDistanceWJitter var = new NetworkLatencyByDistanceWJitter();
+    private NetworkLatencyByDistanceWJitter jitter = new NetworkLatencyByDistanceWJitter();
 
     static {
       regionPerCity.put("Oregon", 0);
@@ -127,27 +375,85 @@ public abstract class NetworkLatency {
           new int[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 12}, // Ireland
         };
 
-    private int getLatency(int reg1, int reg2, int delta) {
-      if (reg1 == reg2) {
-        // It's the same datacenter. 1 is pessimistic actually (0.5 would be better)
-        //  but we can't do less.
-        return 1;
-      }
-      int minReg = Math.min(reg1, reg2);
-      int maxReg = Math.max(reg1, reg2);
+    /** The ping between two cities, indexed by city ids. Null for the cities without region. */
+    private final short[][] pings;
 
-      return Math.max(1, latencies[minReg][maxReg] / 2 + (int) var.getJitter(delta));
+    public AwsRegionNetworkLatency() {
+      int size = 0;
+      int[] cityIds = new int[regionPerCity.size()];
+      for (Map.Entry<String, Integer> e : regionPerCity.entrySet()) {
+        cityIds[e.getValue()] = Node.cityId(e.getKey());
+        size = Math.max(size, cityIds[e.getValue()] + 1);
+      }
+      pings = new short[size][];
+      for (int reg1 = 0; reg1 < cityIds.length; reg1++) {
+        short[] row = new short[size];
+        for (int reg2 = 0; reg2 < cityIds.length; reg2++) {
+          if (reg1 == reg2) {
+            continue;
+          }
+          row[cityIds[reg2]] = (short) latencies[Math.min(reg1, reg2)][Math.max(reg1, reg2)];
+        }
+        pings[cityIds[reg1]] = row;
+      }
     }
 
     public int getExtendedLatency(Node from, Node to, int delta) {
-      Integer reg1 = regionPerCity.get(from.cityName);
-      Integer reg2 = regionPerCity.get(to.cityName);
+      return getLinkLatency(getLinkValue(from, to), delta);
+    }
 
-      if (reg1 == null || reg2 == null) {
+    /** @return the one-way latency between the two regions, -1 if it's the same region. */
+    @Override
+    public int getLinkValue(Node from, Node to) {
+      return getLinkValue(from, pings(from), to);
+    }
+
+    /** @return the pings from the city of this node, null if this city is not a region. */
+    private short[] pings(Node n) {
+      return n.cityId < pings.length ? pings[n.cityId] : null;
+    }
+
+    private int getLinkValue(Node from, short[] fromPings, Node to) {
+      if (fromPings == null || pings(to) == null) {
         throw new IllegalArgumentException(from + " or " + to + " not in our aws cities list");
       }
+      return from.cityId == to.cityId ? -1 : fromPings[to.cityId] / 2;
+    }
+
+    /** The pings from the city of 'from' are read once for all the destinations. */
+    @Override
+    public void getLatencies(
+        List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+      short[] fromPings = pings(from);
+      for (int i = 0; i < count; i++) {
+        Node to = nodes.get(dests[i]);
+        if (to == from) {
+          out[i] = 1;
+        } else {
+          int delta = Network.getPseudoRandom(to.nodeId, randomSeed);
+          int linkValue = getLinkValue(from, fromPings, to);
+          out[i] = addExtraLatency(from, to, getLinkLatency(linkValue, delta));
+        }
+      }
+    }
 
-      return getLatency(reg1, reg2, delta);
+    @Override
+    public int getLinkLatency(int linkValue, int delta) {
+      if (linkValue < 0) {
+        // It's the same datacenter. 1 is pessimistic actually (0.5 would be better)
+        //  but we can't do less.
+        return 1;
+      }
+
+      return Math.max(1, linkValue + (int) jitter.getJitter(delta));
+    }
+
+    @Override
+    public NetworkLatency compile(Network<?> network) {
+      AwsRegionNetworkLatency res = new AwsRegionNetworkLatency();
+      // Only the jitter is used: the distances between the nodes are not needed.
+      res.jitter = new NetworkLatencyByDistanceWJitter.Compiled(new Distances(List.of()));
+      return res;
     }
   }
 
@@ -156,12 +462,37 @@ public abstract class NetworkLatency {
    * two nodes in the same city is considered to be 1 (that's a little bit more than what you have
    * if you're in the same datacenter)
    */
-  public static class NetworkLatencyByCity extends NetworkLatency {
-    private final Map<String, Map<String, Float>> latencyMatrix;
+  public static class NetworkLatencyByCity extends NetworkLatency implements LinkValueLatency {
+    /** The latencies between two cities, indexed by city ids. NaN if we don't have it. */
+    private final float[][] latencyMatrix;
+
+    protected NetworkLatencyByCity(NetworkLatencyByCity model) {
+      this.latencyMatrix = model.latencyMatrix;
+    }
 
     public NetworkLatencyByCity() {
       CSVLatencyReader csvLatencyReader = new CSVLatencyReader();
-      this.latencyMatrix = csvLatencyReader.getLatencyMatrix();
+      Map<String, Map<String, Float>> latencies = csvLatencyReader.getLatencyMatrix();
+
+      int size = 0;
+      for (String city : latencies.keySet()) {
+        size = Math.max(size, Node.cityId(city) + 1);
+      }
+      this.latencyMatrix = new float[size][size];
+      for (float[] row : latencyMatrix) {
+        Arrays.fill(row, Float.NaN);
+      }
+      for (String cityFrom : latencies.keySet()) {
+        for (String cityTo : latencies.keySet()) {
+          Float res = latencies.get(cityFrom).get(cityTo);
+          if (res == null) {
+            res = latencies.get(cityTo).get(cityFrom);
+          }
+          if (res != null) {
+            latencyMatrix[Node.cityId(cityFrom)][Node.cityId(cityTo)] = res;
+          }
+        }
+      }
     }
 
     public int getExtendedLatency(Node from, Node to, int delta) {
@@ -169,25 +500,74 @@ public abstract class NetworkLatency {
         return 1;
       }
 
-      String cityFrom = from.cityName;
-      String cityTo = to.cityName;
+      return getLinkLatency(getLinkValue(from, to), delta);
+    }
+
+    /** @return the latency, it doesn't depend on the delta. */
+    @Override
+    public int getLinkValue(Node from, Node to) {
+      return getLinkValue(from, to, cityLatencies(from.cityId));
+    }
+
+    /**
+     * @param fromLatencies - the latencies from the city of 'from', see cityLatencies
+     * @return the same as getLinkValue
+     */
+    protected int getLinkValue(Node from, Node to, float[] fromLatencies) {
+      checkCities(from, to);
+      return Math.max(1, Math.round(0.5f * getLatency(fromLatencies, from.cityId, to.cityId)));
+    }
 
-      if (cityFrom.equals(Node.DEFAULT_CITY) || cityTo.equals(Node.DEFAULT_CITY)) {
+    /** The latencies from the city of 'from' are read once for all the destinations. */
+    @Override
+    public void getLatencies(
+        List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+      float[] fromLatencies = cityLatencies(from.cityId);
+      for (int i = 0; i < count; i++) {
+        Node to = nodes.get(dests[i]);
+        if (to == from) {
+          out[i] = 1;
+        } else {
+          int delta = Network.getPseudoRandom(to.nodeId, randomSeed);
+          int linkValue = getLinkValue(from, to, fromLatencies);
+          out[i] = addExtraLatency(from, to, getLinkLatency(linkValue, delta));
+        }
+      }
+    }
+
+    @Override
+    public int getLinkLatency(int linkValue, int delta) {
+      return linkValue;
+    }
+
+    protected void checkCities(Node from, Node to) {
+      if (from.cityId == Node.DEFAULT_CITY_ID || to.cityId == Node.DEFAULT_CITY_ID) {
         throw new IllegalStateException(
             "Can't use NetworkLatencyByCity model with default city location");
       }
-
-      return Math.max(1, Math.round(0.5f * getLatency(cityFrom, cityTo)));
     }
 
     protected float getLatency(String cityFrom, String cityTo) {
-      Map<String, Float> from = latencyMatrix.get(cityFrom);
-      if (from == null) {
-        throw new IllegalArgumentException("Can't find latencies for " + cityFrom);
-      }
-      Float res = from.get(cityTo);
-      if (res == null) {
-        res = latencyMatrix.get(cityTo).get(cityFrom);
+      return getLatency(Node.cityId(cityFrom), Node.cityId(cityTo));
+    }
+
+    /** @return the latencies from this city, by city id; null if we don't have this city. */
+    protected float[] cityLatencies(int cityFrom) {
+      return cityFrom < latencyMatrix.length ? latencyMatrix[cityFrom] : null;
+    }
+
+    protected float getLatency(int cityFrom, int cityTo) {
+      return getLatency(cityLatencies(cityFrom), cityFrom, cityTo);
+    }
+
+    protected float getLatency(float[] fromLatencies, int cityFrom, int cityTo) {
+      float res =
+          fromLatencies != null && cityTo < fromLatencies.length
+              ? fromLatencies[cityTo]
+              : Float.NaN;
+      if (Float.isNaN(res)) {
+        throw new IllegalArgumentException(
+            "Can't find latencies for " + Node.cityName(cityFrom) + " to " + Node.cityName(cityTo));
       }
       return res;
     }
@@ -202,32 +582,71 @@ public abstract class NetworkLatency {
 
     public NetworkLatencyByCityWJitter() {}
 
-    private double getJitter(int delta) {
+    protected NetworkLatencyByCityWJitter(NetworkLatencyByCity model) {
+      super(model);
+    }
+
+    protected double getJitter(int delta) {
       return gpd.inverseF(delta / 100.0);
     }
 
+    @Override
+    public NetworkLatency compile(Network<?> network) {
+      return new Compiled(this);
+    }
+
+    /** The jitter by delta is read from a table, the latency matrix is shared with the model. */
+    static class Compiled extends NetworkLatencyByCityWJitter {
+      private final double[] jitters = new double[100];
+
+      Compiled(NetworkLatencyByCityWJitter model) {
+        super(model);
+        for (int delta = 0; delta < jitters.length; delta++) {
+          jitters[delta] = super.getJitter(delta);
+        }
+      }
+
+      @Override
+      protected double getJitter(int delta) {
+        return delta >= 0 && delta < jitters.length ? jitters[delta] : super.getJitter(delta);
+      }
+
+      @Override
+      public NetworkLatency compile(Network<?> network) {
+        return this;
+      }
+
+      @Override
+      public String toString() {
+        return NetworkLatencyByCityWJitter.class.getSimpleName();
+      }
+    }
+
     @Override
     public int getExtendedLatency(Node from, Node to, int delta) {
       if (from.nodeId == to.nodeId) {
         return 1;
       }
 
-      String cityFrom = from.cityName;
-      String cityTo = to.cityName;
-      if (cityFrom.equals(Node.DEFAULT_CITY) || cityTo.equals(Node.DEFAULT_CITY)) {
-        throw new IllegalStateException(
-            "Can't use NetworkLatencyByCity model with default city location");
-      }
+      return getLinkLatency(getLinkValue(from, to), delta);
+    }
 
-      double raw = getJitter(delta);
-      if (cityFrom.equals(cityTo)) {
+    /** @return the round-trip latency between the two cities, as the bits of a float. */
+    @Override
+    protected int getLinkValue(Node from, Node to, float[] fromLatencies) {
+      checkCities(from, to);
+      if (from.cityId == to.cityId) {
         // Latency inside a city depends on many factor. This is a reasonable approximation,
         //  maybe on the pessimistic side.
-        raw += 10;
-      } else {
-        raw += getLatency(cityFrom, cityTo);
+        return Float.floatToIntBits(10);
       }
+      return Float.floatToIntBits(getLatency(fromLatencies, from.cityId, to.cityId));
+    }
 
+    @Override
+    public int getLinkLatency(int linkValue, int delta) {
+      double raw = getJitter(delta);
+      raw += Float.intBitsToFloat(linkValue);
       return Math.max(1, (int) Math.round(0.5 * raw));
     }
   }
@@ -243,6 +662,11 @@ public abstract class NetworkLatency {
       return fixedLatency;
     }
 
+    @Override
+    public int getMinLatency() {
+      return fixedLatency;
+    }
+
     public String toString() {
       return "fixedLatency:" + fixedLatency;
     }
@@ -312,6 +736,11 @@ public abstract class NetworkLatency {
       return longDistrib[delta];
     }
 
+    @Override
+    public int getMinLatency() {
+      return Math.max(1, Arrays.stream(longDistrib).min().orElse(1));
+    }
+
     /**
      * Print the latency distribution: - the first 50ms, 10ms by 10ms - then, until 500ms: each
      * 100ms - then each second
@@ -396,13 +825,41 @@ public abstract class NetworkLatency {
    *
    * <p>This latency should only be used with full random position.
    */
-  public static class IC3NetworkLatency extends NetworkLatency {
+  public static class IC3NetworkLatency extends NetworkLatency implements LinkValueLatency {
     protected static final int S10 = 92;
     protected static final int SW = 350;
 
     @Override
     public int getExtendedLatency(Node from, Node to, int delta) {
-      double dist = from.dist(to);
+      return getLatencyByDistance(from.dist(to));
+    }
+
+    /** @return the latency, it only depends on the distance. */
+    @Override
+    public int getLinkValue(Node from, Node to) {
+      return getLatencyByDistance(from.dist(to));
+    }
+
+    @Override
+    public int getLinkLatency(int linkValue, int delta) {
+      return linkValue;
+    }
+
+    /** The position of 'from' is read once for all the destinations. */
+    @Override
+    public void getLatencies(
+        List<? extends Node> nodes, Node from, int[] dests, int count, int randomSeed, int[] out) {
+      int x = from.x;
+      int y = from.y;
+      for (int i = 0; i < count; i++) {
+        Node to = nodes.get(dests[i]);
+        out[i] =
+            to == from ? 1 : addExtraLatency(from, to, getLatencyByDistance(Node.dist(x, y, to)));
+      }
+    }
+
+    protected int getLatencyByDistance(int distance) {
+      double dist = distance;
       double surface = dist * dist * Math.PI;
       double totalSurface = Node.MAX_X * Node.MAX_Y;
       int position = (int) ((surface * 100) / totalSurface);
@@ -414,6 +871,140 @@ public abstract class NetworkLatency {
       if (position <= 90) return 276 / 2;
       return SW / 2; // The table in the paper does not show any number
     }
+
+    @Override
+    public int getMinLatency() {
+      return S10 / 2;
+    }
+
+    @Override
+    public NetworkLatency compile(Network<?> network) {
+      return new Compiled(new Distances(network.allNodes));
+    }
+
+    /**
+     * The latency only depends on the distance, so we have a latency per distance. The distances
+     * between the nodes are read from a table as well.
+     */
+    static class Compiled extends IC3NetworkLatency {
+      private final int[] latencies = new int[Node.MAX_DIST + 1];
+      private final Distances distances;
+
+      Compiled(Distances distances) {
+        this.distances = distances;
+        for (int dist = 0; dist < latencies.length; dist++) {
+          latencies[dist] = super.getLatencyByDistance(dist);
+        }
+      }
+
+      @Override
+      protected int getLatencyByDistance(int dist) {
+        return dist < latencies.length ? latencies[dist] : super.getLatencyByDistance(dist);
+      }
+
+      @Override
+      public int getExtendedLatency(Node from, Node to, int delta) {
+        return getLatencyByDistance(distances.dist(from, to));
+      }
+
+      @Override
+      public int getLinkValue(Node from, Node to) {
+        return getLatencyByDistance(distances.dist(from, to));
+      }
+
+      @Override
+      public void getLatencies(
+          List<? extends Node> nodes,
+          Node from,
+          int[] dests,
+          int count,
+          int randomSeed,
+          int[] out) {
+        int row = distances.row(from);
+        for (int i = 0; i < count; i++) {
+          Node to = nodes.get(dests[i]);
+          out[i] =
+              to == from
+                  ? 1
+                  : addExtraLatency(from, to, getLatencyByDistance(distances.dist(row, from, to)));
+        }
+      }
+
+      @Override
+      public NetworkLatency compile(Network<?> network) {
+        return this;
+      }
+
+      @Override
+      public String toString() {
+        return IC3NetworkLatency.class.getSimpleName();
+      }
+    }
+  }
+
+  /**
+   * The distances between the nodes, for the compiled models. When there are not too many nodes the
+   * distance between each pair is calculated once. Otherwise, and for the nodes added after, the
+   * distance is read from a table of square roots indexed by the squared distance.
+   */
+  static final class Distances {
+    /** With more nodes the table of the pairs would be greater than 8Mb. */
+    static final int MAX_PAIR_NODES = 2048;
+
+    private final Node[] nodes;
+    private final short[] pairs;
+
+    Distances(List<? extends Node> nodes) {
+      int size = nodes.size();
+      if (size > MAX_PAIR_NODES) {
+        this.nodes = new Node[0];
+        this.pairs = new short[0];
+        return;
+      }
+      this.nodes = nodes.toArray(new Node[0]);
+      this.pairs = new short[size * size];
+      for (int f = 0; f < size; f++) {
+        Node from = this.nodes[f];
+        for (int t = 0; t < size; t++) {
+          pairs[f * size + t] = Roots.ROOTS[Node.dist2(from.x, from.y, this.nodes[t])];
+        }
+      }
+    }
+
+    /** @return where the distances from this node start in the pairs table, -1 if they're not. */
+    int row(Node from) {
+      int f = from.nodeId;
+      return f < nodes.length && nodes[f] == from ? f * nodes.length : -1;
+    }
+
+    /** @param row - the row of 'from', see #row */
+    int dist(int row, Node from, Node to) {
+      int t = to.nodeId;
+      if (row >= 0 && t < nodes.length && nodes[t] == to) {
+        return pairs[row + t];
+      }
+      return Roots.ROOTS[Node.dist2(from.x, from.y, to)];
+    }
+
+    /** @return the same as Node#dist */
+    int dist(Node from, Node to) {
+      return dist(row(from), from, to);
+    }
+
+    /** The integer part of the square roots, shared by all the tables. Created when first used. */
+    static final class Roots {
+      static final short[] ROOTS = new short[Node.MAX_DIST2 + 1];
+
+      static {
+        int root = 0;
+        for (int d2 = 0; d2 < ROOTS.length; d2++) {
+          if ((root + 1) * (root + 1) <= d2) {
+            root++;
+          }
+          ROOTS[d2] = (short) root;
+        }
+      }
+    }
   }
 
   private static void addToStats(int lat, int[] props, int[] vals) {
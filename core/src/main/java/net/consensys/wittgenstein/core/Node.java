@@ -1,11 +1,15 @@
 package net.consensys.wittgenstein.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
 import net.consensys.wittgenstein.core.json.ExternalConverter;
 import net.consensys.wittgenstein.core.utils.GeneralizedParetoDistribution;
 
@@ -16,15 +20,38 @@ public class Node implements Closeable {
   public static final int MAX_Y = 1112;
   public static final int MAX_DIST =
       (int) Math.sqrt((MAX_X / 2.0) * (MAX_X / 2.0) + (MAX_Y / 2.0) * (MAX_Y / 2.0));
+  /** The greatest squared distance between two nodes, see #dist2. */
+  static final int MAX_DIST2 = (MAX_X / 2) * (MAX_X / 2) + (MAX_Y / 2) * (MAX_Y / 2);
+
   public static final String DEFAULT_CITY = "world";
+  public static final int DEFAULT_CITY_ID = 0;
+
+  /**
+   * The city names, interned: a city id is a position in this registry. The ids are shared by all
+   * the networks, so the latency models can index their matrices with them. The registry is
+   * immutable and replaced when a city is added, so reading it doesn't need a lock.
+   */
+  private static volatile Cities cities = new Cities(new String[] {DEFAULT_CITY});
+
+  private static final class Cities {
+    final String[] names;
+    final Map<String, Integer> ids;
+
+    Cities(String[] names) {
+      this.names = names;
+      Map<String, Integer> ids = new HashMap<>(names.length * 2);
+      for (int i = 0; i < names.length; i++) {
+        ids.put(names[i], i);
+      }
+      this.ids = Collections.unmodifiableMap(ids);
+    }
+  }
 
   /** Sequence without any holes; starts at zero. */
   public final int nodeId;
 
-  /**
-   * Many algorithms will want to identify a node by a large & unique number. We do it by default.
-   */
-  public final byte[] hash256;
+  /** The builder of this node. It keeps the columns of the node, see NodeColumns. */
+  @JsonIgnore private final NodeBuilder nb;
 
   /**
    * The position, from 1 to MAX_X / MAX_Y, included. There is a clear weakness here: the nodes are
@@ -59,8 +86,11 @@ public class Node implements Closeable {
    */
   public final double speedRatio;
 
-  /** For some model latency we need to know in which town the node is. */
-  public final String cityName;
+  /**
+   * For some model latency we need to know in which town the node is. It's the id of the city name,
+   * see #cityId: comparing these ids is cheaper than comparing the names.
+   */
+  public final int cityId;
 
   /**
    * A basic error scenario is a node down. When a node is down it cannot receive not send messages,
@@ -71,36 +101,56 @@ public class Node implements Closeable {
   /** The time when the protocol ended for this node 0 if it has not ended yet. */
   public long doneAt = 0;
 
-  /** Some internal statistics. */
-  protected long msgReceived = 0;
-
-  protected long msgSent = 0;
-  protected long bytesSent = 0;
-  protected long bytesReceived = 0;
-
-  private final AtomicInteger iuid;
-
   public int generateNewUniqueIntId() {
-    return iuid.incrementAndGet();
+    return nb.getUniqueIntIdReference().incrementAndGet();
   }
 
-  @JsonSerialize(converter = ExternalConverter.class)
-  private External external = null;
+  /**
+   * Many algorithms will want to identify a node by a large & unique number. We do it by default.
+   * It's calculated each time: most protocols don't use it.
+   */
+  public byte[] getHash256() {
+    return nb.getHash(nodeId);
+  }
+
+  public String getCityName() {
+    return cityName(cityId);
+  }
 
+  /** Some internal statistics, kept in the columns of the builder. */
   public long getMsgReceived() {
-    return msgReceived;
+    return nb.columns.msgReceived[nodeId];
   }
 
   public long getMsgSent() {
-    return msgSent;
+    return nb.columns.msgSent[nodeId];
   }
 
   public long getBytesSent() {
-    return bytesSent;
+    return nb.columns.bytesSent[nodeId];
   }
 
   public long getBytesReceived() {
-    return bytesReceived;
+    return nb.columns.bytesReceived[nodeId];
+  }
+
+  void addMsgSent(int size) {
+    addMsgSent(size, 1);
+  }
+
+  /** 'count' can be negative when coalesced messages are counted as a single message. */
+  void addMsgSent(int size, int count) {
+    nb.columns.msgSent[nodeId] += count;
+    nb.columns.bytesSent[nodeId] += size;
+  }
+
+  void addMsgReceived(int size) {
+    addMsgReceived(size, 1);
+  }
+
+  void addMsgReceived(int size, int count) {
+    nb.columns.msgReceived[nodeId] += count;
+    nb.columns.bytesReceived[nodeId] += size;
   }
 
   public long getDoneAt() {
@@ -113,7 +163,7 @@ public class Node implements Closeable {
   }
 
   public String fullToString() {
-    return "id=" + nodeId + ", city=" + cityName + ", posX=" + x + ", posY=" + y;
+    return "id=" + nodeId + ", city=" + getCityName() + ", posX=" + x + ", posY=" + y;
   }
 
   /** Called when a node starts or restarts. */
@@ -131,11 +181,17 @@ public class Node implements Closeable {
   }
 
   public void setExternal(External ext) {
-    this.external = ext;
+    if (ext == null) {
+      nb.columns.externals.remove(nodeId);
+    } else {
+      nb.columns.externals.put(nodeId, ext);
+    }
   }
 
+  @JsonSerialize(converter = ExternalConverter.class)
   public External getExternal() {
-    return external;
+    Map<Integer, External> externals = nb.columns.externals;
+    return externals.isEmpty() ? null : externals.get(nodeId);
   }
 
   /** If a node uses any extra resource it can free them here. */
@@ -243,14 +299,41 @@ public class Node implements Closeable {
     }
   }
 
+  /** @return the id of this city, allocated if it's the first time we see this city. */
+  public static int cityId(String cityName) {
+    Integer id = cities.ids.get(cityName);
+    return id != null ? id : addCity(cityName);
+  }
+
+  private static synchronized int addCity(String cityName) {
+    Cities cur = cities;
+    Integer id = cur.ids.get(cityName);
+    if (id == null) {
+      String[] names = Arrays.copyOf(cur.names, cur.names.length + 1);
+      id = cur.names.length;
+      names[id] = cityName;
+      cities = new Cities(names);
+    }
+    return id;
+  }
+
+  public static String cityName(int cityId) {
+    return cities.names[cityId];
+  }
+
+  /** @return the number of city ids allocated so far. */
+  public static int cityCount() {
+    return cities.names.length;
+  }
+
   public Node(Random rd, NodeBuilder nb, boolean byzantine) {
-    this.iuid = nb.getUniqueIntIdReference();
+    this.nb = nb;
     this.nodeId = nb.allocateNodeId();
     if (this.nodeId < 0) {
       throw new IllegalArgumentException("bad nodeId:" + nodeId);
     }
     int rdNode = rd.nextInt();
-    this.cityName = nb.getCityName(rdNode);
+    String cityName = nb.getCityName(rdNode);
     this.x = nb.getX(rdNode);
     this.y = nb.getY(rdNode);
     if (this.x <= 0 || this.x > MAX_X) {
@@ -259,8 +342,8 @@ public class Node implements Closeable {
     if (this.y <= 0 || this.y > MAX_Y) {
       throw new IllegalArgumentException("bad y=" + y);
     }
+    this.cityId = nb.getCityId(cityName);
     this.byzantine = byzantine;
-    this.hash256 = nb.getHash(nodeId);
 
     this.speedRatio = (double) getAspectValue(SpeedRatioAspect.class, nb.aspects, rd, 1.0);
     this.extraLatency = (int) getAspectValue(ExtraLatencyAspect.class, nb.aspects, rd, 0);
@@ -276,9 +359,19 @@ public class Node implements Closeable {
 
   /** @return the distance with this node, considering a round map. */
   int dist(Node n) {
+    return dist(x, y, n);
+  }
+
+  /** @return the distance between this position and the node, considering a round map. */
+  static int dist(int x, int y, Node n) {
+    return (int) Math.sqrt(dist2(x, y, n));
+  }
+
+  /** @return the square of the distance between this position and the node. */
+  static int dist2(int x, int y, Node n) {
     int dx = Math.min(Math.abs(x - n.x), MAX_X - Math.abs(x - n.x));
     int dy = Math.min(Math.abs(y - n.y), MAX_Y - Math.abs(y - n.y));
-    return (int) Math.sqrt(dx * dx + dy * dy);
+    return dx * dx + dy * dy;
   }
 
   @Override
@@ -7,9 +7,9 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import net.consensys.wittgenstein.core.geoinfo.CityInfo;
@@ -19,17 +19,22 @@ import net.consensys.wittgenstein.core.geoinfo.Geo;
 public class NodeBuilder implements Cloneable {
   /** Last node id allocated. */
   private int nodeIds = 0;
-  /** Used to calculate a hash */
-  private final MessageDigest digest;
+  /** Used to calculate a hash. Each copy has its own, see getHash. */
+  private MessageDigest digest = newDigest();
   /** List of the aspects we can add to the node (speed, latency, ...) */
   public final List<Node.Aspect> aspects = new ArrayList<>();
 
+  /** The data of the nodes built by this builder, stored by columns. */
+  NodeColumns columns = new NodeColumns();
+
   /** Unique reference shared by all nodes when they need to allocate a unique id. */
   private final AtomicInteger uIntId = new AtomicInteger();
 
-  public NodeBuilder() {
+  public NodeBuilder() {}
+
+  private static MessageDigest newDigest() {
     try {
-      digest = MessageDigest.getInstance("SHA-256");
+      return MessageDigest.getInstance("SHA-256");
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalStateException();
     }
@@ -43,6 +48,8 @@ public class NodeBuilder implements Cloneable {
     try {
       NodeBuilder nb = (NodeBuilder) this.clone();
       nb.nodeIds = 0;
+      nb.columns = new NodeColumns();
+      nb.digest = newDigest();
       return nb;
     } catch (CloneNotSupportedException e) {
       throw new IllegalStateException(e);
@@ -50,6 +57,7 @@ public class NodeBuilder implements Cloneable {
   }
 
   int allocateNodeId() {
+    columns.ensureCapacity(nodeIds + 1);
     return nodeIds++;
   }
 
@@ -65,8 +73,16 @@ public class NodeBuilder implements Cloneable {
     return Node.DEFAULT_CITY;
   }
 
-  /** Many protocols wants a hash of the node id. */
-  protected byte[] getHash(int nodeId) {
+  /** @return the id of this city, as returned by getCityName. */
+  protected int getCityId(String cityName) {
+    return Node.cityId(cityName);
+  }
+
+  /**
+   * Many protocols wants a hash of the node id. A digest is not thread safe, so the builder is
+   * locked: it's not shared with the copies of this builder.
+   */
+  protected synchronized byte[] getHash(int nodeId) {
     return digest.digest(ByteBuffer.allocate(4).putInt(nodeId).array());
   }
 
@@ -98,6 +114,15 @@ public class NodeBuilder implements Cloneable {
   public static class NodeBuilderWithCity extends NodeBuilder {
     final List<String> cities;
     final Map<String, CityInfo> citiesInfo;
+    final Map<String, Integer> cityIds = new HashMap<>();
+
+    /**
+     * The random city selection only has 'cities.size()' possible results, so we calculate them
+     * once: the city and its info for each of them.
+     */
+    private final String[] cityByRand;
+
+    private final CityInfo[] infoByRand;
 
     public NodeBuilderWithCity(List<String> cities, Geo geoInfo) {
       this.cities = cities.stream().map(String::toUpperCase).collect(Collectors.toList());
@@ -106,6 +131,33 @@ public class NodeBuilder implements Cloneable {
           geoInfo.citiesPosition().entrySet().stream()
               .filter(x -> this.cities.contains(x.getKey().toUpperCase()))
               .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+      for (String city : citiesInfo.keySet()) {
+        cityIds.put(city, Node.cityId(city));
+      }
+
+      // The selection takes the first city, in the map order, with a cumulative probability
+      //  greater than p. It's also the first city with a maximum of the cumulative probabilities
+      //  seen so far greater than p, and as these maximums and p are increasing we can do a
+      //  single pass.
+      int size = this.cities.size();
+      cityByRand = new String[size];
+      infoByRand = new CityInfo[size];
+      List<Map.Entry<String, CityInfo>> entries = new ArrayList<>(citiesInfo.entrySet());
+      int pos = 0;
+      float max = entries.isEmpty() ? 0 : entries.get(0).getValue().cumulativeProbability;
+      for (int rand = 0; rand < size; rand++) {
+        float p = (float) rand / size;
+        while (pos < entries.size() && max < p) {
+          pos++;
+          if (pos < entries.size()) {
+            max = Math.max(max, entries.get(pos).getValue().cumulativeProbability);
+          }
+        }
+        if (pos < entries.size()) {
+          cityByRand[rand] = entries.get(pos).getKey();
+          infoByRand[rand] = entries.get(pos).getValue();
+        }
+      }
     }
 
     @Override
@@ -113,37 +165,32 @@ public class NodeBuilder implements Cloneable {
       return getRandomCityInfo(rdInt);
     }
 
+    @Override
+    protected int getCityId(String cityName) {
+      Integer id = cityIds.get(cityName);
+      return id != null ? id : super.getCityId(cityName);
+    }
+
     public Map<String, CityInfo> getCitiesInfo() {
       return this.citiesInfo;
     }
 
-    int[] getPos(int rdInt) {
-      String city = getCityName(rdInt);
-      CityInfo cityInfo = citiesInfo.get(city);
-      return Objects.requireNonNullElseGet(
-          new int[] {cityInfo.mercX, cityInfo.mercY}, () -> new int[] {1, 1});
+    // Weighted Random Selection algorithm
+    private int getRandomCityIndex(int rdInt) {
+      // Math.abs(Integer.MIN_VALUE) is negative: we get the first city, as with zero.
+      return Math.max(0, Math.abs(rdInt) % cities.size());
     }
 
-    // Weighted Random Selection algorithm
     private String getRandomCityInfo(int rdInt) {
-      int size = cities.size();
-      int rand = Math.abs(rdInt) % size;
-      float p = (float) rand / size;
-
-      for (Map.Entry<String, CityInfo> cityInfo : citiesInfo.entrySet()) {
-        if (p <= cityInfo.getValue().cumulativeProbability) {
-          return cityInfo.getKey();
-        }
-      }
-      return null;
+      return cityByRand[getRandomCityIndex(rdInt)];
     }
 
     protected int getX(int rdInt) {
-      return getPos(rdInt)[0];
+      return infoByRand[getRandomCityIndex(rdInt)].mercX;
     }
 
     protected int getY(int rdInt) {
-      return getPos(rdInt)[1];
+      return infoByRand[getRandomCityIndex(rdInt)].mercY;
     }
   }
 }
@@ -0,0 +1,32 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Some data of the nodes, stored by column instead of in the Node objects: with millions of nodes
+ * it saves the memory used by the fields that are only read for the statistics, or that are set for
+ * a few nodes only. The columns are shared by all the nodes created by a NodeBuilder, and indexed
+ * by node id.
+ */
+final class NodeColumns {
+  long[] msgReceived = new long[0];
+  long[] msgSent = new long[0];
+  long[] bytesSent = new long[0];
+  long[] bytesReceived = new long[0];
+
+  /** Very few nodes have an External, so we keep them in a map. */
+  final Map<Integer, External> externals = new HashMap<>();
+
+  /** Called when a node id is allocated. */
+  void ensureCapacity(int size) {
+    if (msgReceived.length < size) {
+      int newSize = Math.max(size, msgReceived.length * 2);
+      msgReceived = Arrays.copyOf(msgReceived, newSize);
+      msgSent = Arrays.copyOf(msgSent, newSize);
+      bytesSent = Arrays.copyOf(bytesSent, newSize);
+      bytesReceived = Arrays.copyOf(bytesReceived, newSize);
+    }
+  }
+}
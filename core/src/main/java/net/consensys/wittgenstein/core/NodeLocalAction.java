@@ -0,0 +1,11 @@
+package net.consensys.wittgenstein.core;
+
+/**
+ * A marker for the messages, or the nodes, with actions that modify only the state of the node
+ * receiving the message. They can then be executed in parallel, see Network#setBatchParallelism.
+ *
+ * <p>On a node, it means that all the messages and tasks received by this node follow this rule.
+ * Sending messages or registering tasks is allowed, but using Network#rd is not. With random
+ * streams, the streams of the receiving node (Network#getRandom) can be used.
+ */
+public interface NodeLocalAction {}
@@ -0,0 +1,91 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed size bitmap with summary levels: each bit of a level says if the corresponding 64 bits
+ * word of the level below is non-zero. Finding the next set bit costs one word per level, i.e. 3
+ * words for the 60,000 milliseconds of a slot, instead of a scan of the whole range.
+ */
+final class OccupancyBitmap {
+  /** levels[0] has one bit per position, levels[i + 1] one bit per word of levels[i]. */
+  private final long[][] levels;
+
+  OccupancyBitmap(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("size=" + size);
+    }
+    List<long[]> ls = new ArrayList<>();
+    int words = size;
+    do {
+      words = (words + 63) >>> 6;
+      ls.add(new long[words]);
+    } while (words > 1);
+    levels = ls.toArray(new long[0][]);
+  }
+
+  void set(int pos) {
+    for (long[] level : levels) {
+      int w = pos >>> 6;
+      boolean wasEmpty = level[w] == 0;
+      level[w] |= 1L << pos;
+      if (!wasEmpty) {
+        return;
+      }
+      pos = w;
+    }
+  }
+
+  void clear(int pos) {
+    for (long[] level : levels) {
+      int w = pos >>> 6;
+      level[w] &= ~(1L << pos);
+      if (level[w] != 0) {
+        return;
+      }
+      pos = w;
+    }
+  }
+
+  boolean get(int pos) {
+    return (levels[0][pos >>> 6] & (1L << pos)) != 0;
+  }
+
+  boolean isEmpty() {
+    return levels[levels.length - 1][0] == 0;
+  }
+
+  void clearAll() {
+    for (long[] level : levels) {
+      Arrays.fill(level, 0);
+    }
+  }
+
+  /** @return the first position set at or after 'from', -1 if there is none. */
+  int nextSetBit(int from) {
+    int level = 0;
+    int pos = from;
+    // We go up until we find a word with a bit set after our position...
+    while (true) {
+      if (level == levels.length || (pos >>> 6) >= levels[level].length) {
+        return -1;
+      }
+      long w = levels[level][pos >>> 6] & (-1L << pos);
+      if (w != 0) {
+        pos = (pos & ~63) + Long.numberOfTrailingZeros(w);
+        break;
+      }
+      pos = (pos >>> 6) + 1;
+      level++;
+    }
+
+    // ...then we go down following the first bit set of each word.
+    while (level > 0) {
+      level--;
+      pos = (pos << 6) + Long.numberOfTrailingZeros(levels[level][pos]);
+    }
+    return pos;
+  }
+}
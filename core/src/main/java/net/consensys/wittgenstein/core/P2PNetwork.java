@@ -2,6 +2,8 @@ package net.consensys.wittgenstein.core;
 
 import java.util.*;
 import net.consensys.wittgenstein.core.messages.FloodMessage;
+import net.consensys.wittgenstein.core.messages.Message;
+import net.consensys.wittgenstein.core.utils.LongHashSet;
 
 /**
  * A peer-to-peer network, i.e. network with nodes interconnected with a small number of peers
@@ -11,7 +13,21 @@ import net.consensys.wittgenstein.core.messages.FloodMessage;
 public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
   private final int connectionCount;
   private final boolean minimum;
-  private Set<Long> existingLinks = new HashSet<>();
+
+  /** The links, as (min node id << 32) + max node id. */
+  private final LongHashSet existingLinks = new LongHashSet();
+
+  /**
+   * The latency model used to calculate the link values of the peers (see
+   * NetworkLatency.LinkValueLatency and P2PNode#getLinkValue): the peers exchange many messages,
+   * there is no need to recalculate them each time.
+   */
+  private NetworkLatency linkValuesModel;
+
+  /** Working array of sendPeers, kept between the calls. */
+  private int[] peerLinkValues = new int[0];
+
+  private FloodStore<TN> floodStore = FloodStore.perNode();
 
   /**
    * @param connectionCount - the target for the number of connection
@@ -23,6 +39,27 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
     this.minimum = minimum;
   }
 
+  @Override
+  public void addNode(TN node) {
+    super.addNode(node);
+    node.networkNodes = allNodes;
+    node.floodStore = floodStore;
+  }
+
+  /**
+   * Changes where the nodes keep the flood messages they have received. Should be called before
+   * sending any flood message: the messages received before are forgotten.
+   */
+  public P2PNetwork<TN> setFloodStore(FloodStore<TN> floodStore) {
+    this.floodStore = floodStore;
+    for (TN n : allNodes) {
+      if (n != null) {
+        n.floodStore = floodStore;
+      }
+    }
+    return this;
+  }
+
   public void setPeers() {
     if (connectionCount >= allNodes.size()) {
       throw new IllegalArgumentException(
@@ -37,7 +74,7 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
       while (toCreate != existingLinks.size()) {
         int pp1 = rd.nextInt(allNodes.size());
         int pp2 = rd.nextInt(allNodes.size());
-        createLink(existingLinks, pp1, pp2);
+        createLink(pp1, pp2);
       }
     }
 
@@ -49,7 +86,7 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
     for (TN n : an) {
       while (n.peers.size() < (minimum ? connectionCount : Math.min(3, this.connectionCount))) {
         int pp2 = rd.nextInt(allNodes.size());
-        createLink(existingLinks, n.nodeId, pp2);
+        createLink(n.nodeId, pp2);
       }
     }
   }
@@ -61,14 +98,14 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
   }
 
   public void createLink(TN p1, TN p2) {
-    createLink(existingLinks, p1.nodeId, p2.nodeId);
+    createLink(p1.nodeId, p2.nodeId);
   }
 
   public void removeLink(TN p1, TN p2) {
-    removeLink(existingLinks, p1.nodeId, p2.nodeId);
+    removeLink(p1.nodeId, p2.nodeId);
   }
 
-  private void createLink(Set<Long> existingLinks, int pp1, int pp2) {
+  private void createLink(int pp1, int pp2) {
     if (pp1 == pp2) {
       return;
     }
@@ -87,11 +124,42 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
           "should not be null: p1=" + p1 + ", p2=" + p2 + ", pp1=" + pp1 + ", pp2=" + pp2);
     }
 
-    p1.peers.add(p2);
-    p2.peers.add(p1);
+    p1.addPeer(p2);
+    p2.addPeer(p1);
+
+    // If the link values were not calculated for this model they will be when they're used.
+    if (linkValuesModel == networkLatency
+        && networkLatency instanceof NetworkLatency.LinkValueLatency) {
+      NetworkLatency.LinkValueLatency model = (NetworkLatency.LinkValueLatency) networkLatency;
+      p1.setLinkValue(p1.peers.size() - 1, model.getLinkValue(p1, p2));
+      p2.setLinkValue(p2.peers.size() - 1, model.getLinkValue(p2, p1));
+    }
+  }
+
+  /**
+   * Recalculates all the link values if the latency model has changed.
+   *
+   * @return the current model if it has link values, null otherwise.
+   */
+  private NetworkLatency.LinkValueLatency checkLinkValues() {
+    if (!(networkLatency instanceof NetworkLatency.LinkValueLatency)) {
+      return null;
+    }
+    NetworkLatency.LinkValueLatency model = (NetworkLatency.LinkValueLatency) networkLatency;
+    if (linkValuesModel != networkLatency) {
+      linkValuesModel = networkLatency;
+      for (TN n : allNodes) {
+        if (n != null) {
+          for (int i = 0; i < n.peers.size(); i++) {
+            n.setLinkValue(i, model.getLinkValue(n, n.peers.get(i)));
+          }
+        }
+      }
+    }
+    return model;
   }
 
-  private void removeLink(Set<Long> existingLinks, int pp1, int pp2) {
+  private void removeLink(int pp1, int pp2) {
     if (pp1 == pp2) {
       return;
     }
@@ -108,8 +176,8 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
           "should not be null: p1=" + p1 + ", p2=" + p2 + ", pp1=" + pp1 + ", pp2=" + pp2);
     }
 
-    p1.peers.remove(p2);
-    p2.peers.remove(p1);
+    p1.removePeer(p2);
+    p2.removePeer(p1);
   }
 
   public int avgPeers() {
@@ -126,8 +194,62 @@ public class P2PNetwork<TN extends P2PNode<TN>> extends Network<TN> {
 
   public void sendPeers(FloodMessage<TN> msg, TN from) {
     msg.addToReceived(from);
-    List<TN> dest = new ArrayList<>(from.peers);
-    Collections.shuffle(dest, rd);
-    send(msg, time + 1 + msg.localDelay, from, dest, msg.delayBetweenPeers);
+    sendPeers(
+        msg,
+        time + 1 + msg.localDelay,
+        from,
+        null,
+        getRandom(from, RandomStream.SHUFFLE),
+        msg.delayBetweenPeers);
+  }
+
+  /**
+   * Sends a message to the peers of 'from' but 'exclude': it's the same as sendShuffled on the
+   * peers, but the latencies are calculated from the link values kept with the peers.
+   */
+  public void sendPeers(
+      Message<? extends TN> m,
+      int sendTime,
+      TN from,
+      Node exclude,
+      Random rd,
+      int delaysBetweenMessage) {
+    NetworkLatency.LinkValueLatency model = checkLinkValues();
+    int peerCount = from.peers.size();
+    int[] ids = destIdsBuffer(peerCount);
+    int[] lvs = model == null ? null : linkValuesBuffer(peerCount);
+    int count = 0;
+    for (int i = 0; i < peerCount; i++) {
+      int id = from.getPeerId(i);
+      if (exclude == null || exclude.nodeId != id) {
+        if (lvs != null) {
+          lvs[count] = from.getLinkValue(i);
+        }
+        ids[count++] = id;
+      }
+    }
+    for (int i = count; i > 1; i--) {
+      int j = rd.nextInt(i);
+      int t = ids[i - 1];
+      ids[i - 1] = ids[j];
+      ids[j] = t;
+      if (lvs != null) {
+        t = lvs[i - 1];
+        lvs[i - 1] = lvs[j];
+        lvs[j] = t;
+      }
+    }
+    send(m, sendTime, from, ids, lvs, count, delaysBetweenMessage);
+  }
+
+  /** Same as destIdsBuffer, for the link values. */
+  private int[] linkValuesBuffer(int size) {
+    if (parallel != null && parallel.inPhase) {
+      return new int[size];
+    }
+    if (peerLinkValues.length < size) {
+      peerLinkValues = new int[Math.max(size, peerLinkValues.length * 2)];
+    }
+    return peerLinkValues;
   }
 }
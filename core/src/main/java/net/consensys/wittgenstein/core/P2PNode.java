@@ -1,19 +1,133 @@
 package net.consensys.wittgenstein.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import java.util.*;
 import net.consensys.wittgenstein.core.json.ListNodeConverter;
 import net.consensys.wittgenstein.core.messages.FloodMessage;
 
-public class P2PNode<TN extends P2PNode> extends Node {
+public class P2PNode<TN extends P2PNode<TN>> extends Node {
 
+  /**
+   * The peers of this node, in the order the links were created. It's a read-only view on the peer
+   * ids: the links are created and removed by the P2PNetwork.
+   */
   @JsonSerialize(converter = ListNodeConverter.class)
-  public final List<TN> peers = new ArrayList<>();
+  public final List<TN> peers = new PeerList();
 
-  protected Map<Long, Set<FloodMessage>> received = new HashMap<>();
+  /** The nodes of the network, to find the peers from their ids. Set by P2PNetwork#addNode. */
+  List<? extends Node> networkNodes = Collections.emptyList();
 
-  public Set<FloodMessage> getMsgReceived(long id) {
-    return received.computeIfAbsent(id, k -> new HashSet<>());
+  private int[] peerIds = new int[4];
+  private int peerCount = 0;
+
+  /**
+   * The link value with each peer, in the same order as peerIds. Kept by the P2PNetwork for its
+   * latency model, see NetworkLatency.LinkValueLatency.
+   */
+  private int[] linkValues = new int[4];
+
+  private final class PeerList extends AbstractList<TN> implements RandomAccess {
+    @Override
+    @SuppressWarnings("unchecked")
+    public TN get(int index) {
+      return (TN) networkNodes.get(getPeerId(index));
+    }
+
+    @Override
+    public int size() {
+      return peerCount;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+      if (o instanceof Node) {
+        int id = ((Node) o).nodeId;
+        for (int i = 0; i < peerCount; i++) {
+          if (peerIds[i] == id) {
+            return i;
+          }
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return indexOf(o) >= 0;
+    }
+
+    void addPeer(int id) {
+      if (peerCount == peerIds.length) {
+        peerIds = Arrays.copyOf(peerIds, peerCount * 2);
+        linkValues = Arrays.copyOf(linkValues, peerCount * 2);
+      }
+      linkValues[peerCount] = 0;
+      peerIds[peerCount++] = id;
+      modCount++;
+    }
+
+    void removePeer(int id) {
+      for (int i = 0; i < peerCount; i++) {
+        if (peerIds[i] == id) {
+          System.arraycopy(peerIds, i + 1, peerIds, i, peerCount - i - 1);
+          System.arraycopy(linkValues, i + 1, linkValues, i, peerCount - i - 1);
+          peerCount--;
+          modCount++;
+          return;
+        }
+      }
+    }
+  }
+
+  /** @return the node id of the peer 'index', without going through the peer list. */
+  public int getPeerId(int index) {
+    if (index >= peerCount) {
+      throw new IndexOutOfBoundsException("index=" + index + ", peers=" + peerCount);
+    }
+    return peerIds[index];
+  }
+
+  /** @return the link value with the peer 'index'. Set by P2PNetwork only. */
+  int getLinkValue(int index) {
+    return linkValues[index];
+  }
+
+  void setLinkValue(int index, int linkValue) {
+    linkValues[index] = linkValue;
+  }
+
+  /** Called by P2PNetwork only. */
+  void addPeer(TN peer) {
+    ((PeerList) peers).addPeer(peer.nodeId);
+  }
+
+  /** Called by P2PNetwork only. */
+  void removePeer(TN peer) {
+    ((PeerList) peers).removePeer(peer.nodeId);
+  }
+
+  /**
+   * Used by FloodStore.PerNode only. Created with the first flood message: with the other stores,
+   * or without flood messages, the nodes don't need it.
+   */
+  protected Map<Long, Set<FloodMessage<?>>> received;
+
+  /** Set by the network, see P2PNetwork#setFloodStore. */
+  FloodStore<TN> floodStore = FloodStore.perNode();
+
+  public Set<FloodMessage<?>> getMsgReceived(long id) {
+    return floodStore.getReceived(this, id);
+  }
+
+  /** @return the number of flood messages with this id received. */
+  public int getMsgReceivedCount(long id) {
+    return floodStore.getReceivedCount(this, id);
+  }
+
+  @JsonIgnore
+  public FloodStore<TN> getFloodStore() {
+    return floodStore;
   }
 
   public P2PNode(Random rd, NodeBuilder nb) {
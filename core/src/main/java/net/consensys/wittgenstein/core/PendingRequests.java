@@ -0,0 +1,77 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.Arrays;
+import net.consensys.wittgenstein.core.utils.LongIntHashMap;
+
+/**
+ * The requests waiting for their answer. There is a counter per node, so we don't have to go
+ * through the requests to know how many requests a node is waiting for. The requests with a timeout
+ * are also indexed by the id of their timer: the envelopes are kept in an array, the map only
+ * contains their index, and the indexes are reused.
+ */
+final class PendingRequests {
+  private final LongIntHashMap indexes = new LongIntHashMap();
+  private Envelope.RequestEnvelope<?>[] envelopes = new Envelope.RequestEnvelope<?>[16];
+  private int[] freeIndexes = new int[16];
+  private int freeCount = 0;
+  private int used = 0;
+  private int[] perNode = new int[0];
+  private int size = 0;
+
+  void add(Envelope.RequestEnvelope<?> re) {
+    if (re.timeoutId != 0) {
+      int pos;
+      if (freeCount > 0) {
+        pos = freeIndexes[--freeCount];
+      } else {
+        if (used == envelopes.length) {
+          envelopes = Arrays.copyOf(envelopes, used * 2);
+          freeIndexes = Arrays.copyOf(freeIndexes, used * 2);
+        }
+        pos = used++;
+      }
+      envelopes[pos] = re;
+      indexes.put(re.timeoutId, pos);
+    }
+
+    if (re.requesterId >= perNode.length) {
+      perNode = Arrays.copyOf(perNode, Math.max(re.requesterId + 1, perNode.length * 2));
+    }
+    perNode[re.requesterId]++;
+    size++;
+  }
+
+  /** @return false if this request was not waiting anymore, i.e. its timeout has expired. */
+  boolean remove(Envelope.RequestEnvelope<?> re) {
+    return re.timeoutId == 0 ? done(re) : removeByTimeout(re.timeoutId) != null;
+  }
+
+  /** @return the request with this timeout, null if it's not waiting anymore. */
+  Envelope.RequestEnvelope<?> removeByTimeout(long timeoutId) {
+    int pos = indexes.get(timeoutId, -1);
+    if (pos < 0) {
+      return null;
+    }
+    indexes.remove(timeoutId);
+    Envelope.RequestEnvelope<?> re = envelopes[pos];
+    envelopes[pos] = null;
+    freeIndexes[freeCount++] = pos;
+    done(re);
+    return re;
+  }
+
+  private boolean done(Envelope.RequestEnvelope<?> re) {
+    perNode[re.requesterId]--;
+    size--;
+    return true;
+  }
+
+  /** @return the number of requests sent by this node still waiting for their answer. */
+  int count(int nodeId) {
+    return nodeId < perNode.length ? perNode[nodeId] : 0;
+  }
+
+  int size() {
+    return size;
+  }
+}
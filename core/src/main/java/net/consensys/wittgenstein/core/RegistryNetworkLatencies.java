@@ -3,9 +3,15 @@ package net.consensys.wittgenstein.core;
 import java.lang.reflect.Constructor;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
+/**
+ * The network latencies by name. They are created on the first lookup then shared: the models are
+ * immutable, and some of them, like the ones reading the ping files, take seconds to build.
+ */
 public class RegistryNetworkLatencies {
-  private Map<String, NetworkLatency> registry = new HashMap<>();
+  private final Map<String, Supplier<NetworkLatency>> registry = new HashMap<>();
+  private final Map<String, NetworkLatency> cache = new HashMap<>();
 
   public static RegistryNetworkLatencies singleton = new RegistryNetworkLatencies();
 
@@ -26,21 +32,34 @@ public class RegistryNetworkLatencies {
 
   public RegistryNetworkLatencies() {
     for (int f : new int[] {0, 100, 200, 500, 1000, 2000, 4000, 8000}) {
-      registry.put(name(Type.FIXED, f), new NetworkLatency.NetworkFixedLatency(f));
-      registry.put(name(Type.UNIFORM, f), new NetworkLatency.NetworkUniformLatency(f));
+      registry.put(name(Type.FIXED, f), () -> new NetworkLatency.NetworkFixedLatency(f));
+      registry.put(name(Type.UNIFORM, f), () -> new NetworkLatency.NetworkUniformLatency(f));
     }
+
+    // Same ping files, so we read them only once.
+    registry.put(
+        NetworkLatency.NetworkLatencyByCityWJitter.class.getSimpleName(),
+        () ->
+            new NetworkLatency.NetworkLatencyByCityWJitter(
+                (NetworkLatency.NetworkLatencyByCity)
+                    getByName(NetworkLatency.NetworkLatencyByCity.class.getSimpleName())));
   }
 
-  public NetworkLatency getByName(String name) {
+  public synchronized NetworkLatency getByName(String name) {
     if (name == null) {
       name = NetworkLatency.NetworkLatencyByDistanceWJitter.class.getSimpleName();
     }
 
-    NetworkLatency nl = registry.get(name);
-    if (nl != null) {
-      return nl;
+    NetworkLatency nl = cache.get(name);
+    if (nl == null) {
+      Supplier<NetworkLatency> s = registry.get(name);
+      nl = s != null ? s.get() : createByClassName(name);
+      cache.put(name, nl);
     }
+    return nl;
+  }
 
+  private static NetworkLatency createByClassName(String name) {
     String ref = NetworkLatency.NetworkLatencyByDistanceWJitter.class.getName();
     String cut =
         ref.substring(
@@ -1,14 +1,27 @@
 package net.consensys.wittgenstein.core;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import net.consensys.wittgenstein.core.geoinfo.Geo;
 import net.consensys.wittgenstein.core.geoinfo.GeoAWS;
 import net.consensys.wittgenstein.core.geoinfo.GeoAllCities;
 import net.consensys.wittgenstein.tools.CSVLatencyReader;
 
+/**
+ * The node builders by name. A node builder is created the first time it's asked for, so the city
+ * files are not read if only the random positions are used.
+ */
 public class RegistryNodeBuilders {
-  private Map<String, NodeBuilder> registry = new HashMap<>();
+  private final Map<String, Supplier<NodeBuilder>> registry = new HashMap<>();
+  private final Map<String, NodeBuilder> cache = new HashMap<>();
+
+  /** Read on the first use of a location, and shared by all its node builders. */
+  private List<String> cities;
+
+  private Geo geoAllCities;
+  private Geo geoAWS;
 
   public enum Location {
     AWS,
@@ -33,49 +46,62 @@ public class RegistryNodeBuilders {
   }
 
   private RegistryNodeBuilders() {
-    CSVLatencyReader lr = new CSVLatencyReader();
-    Geo geoAWS = new GeoAWS();
-    Geo geoAllCities = new GeoAllCities();
-
     for (Location loc : locations()) {
       for (boolean speedConstant : new Boolean[] {true, false}) {
         for (double tor : tor()) {
-          NodeBuilder nb;
-          switch (loc) {
-            case AWS:
-              nb =
-                  new NodeBuilder.NodeBuilderWithCity(
-                      NetworkLatency.AwsRegionNetworkLatency.cities(), geoAWS);
-              break;
-            case CITIES:
-              nb = new NodeBuilder.NodeBuilderWithCity(lr.cities(), geoAllCities);
-              break;
-            case RANDOM:
-              nb = new NodeBuilder.NodeBuilderWithRandomPosition();
-              break;
-            default:
-              throw new IllegalStateException();
-          }
-          if (!speedConstant) {
-            nb.aspects.add(new Node.SpeedRatioAspect(new Node.UniformSpeed()));
-          }
-          if (tor > 0.001) {
-            nb.aspects.add(new Node.ExtraLatencyAspect(tor));
-          }
-          registry.put(name(loc, speedConstant, tor), nb);
+          registry.put(name(loc, speedConstant, tor), () -> create(loc, speedConstant, tor));
         }
       }
     }
   }
 
-  public NodeBuilder getByName(String name) {
+  private NodeBuilder create(Location loc, boolean speedConstant, double tor) {
+    NodeBuilder nb;
+    switch (loc) {
+      case AWS:
+        if (geoAWS == null) {
+          geoAWS = new GeoAWS();
+        }
+        nb =
+            new NodeBuilder.NodeBuilderWithCity(
+                NetworkLatency.AwsRegionNetworkLatency.cities(), geoAWS);
+        break;
+      case CITIES:
+        if (cities == null) {
+          cities = new CSVLatencyReader().cities();
+          geoAllCities = new GeoAllCities();
+        }
+        nb = new NodeBuilder.NodeBuilderWithCity(cities, geoAllCities);
+        break;
+      case RANDOM:
+        nb = new NodeBuilder.NodeBuilderWithRandomPosition();
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+    if (!speedConstant) {
+      nb.aspects.add(new Node.SpeedRatioAspect(new Node.UniformSpeed()));
+    }
+    if (tor > 0.001) {
+      nb.aspects.add(new Node.ExtraLatencyAspect(tor));
+    }
+    return nb;
+  }
+
+  public synchronized NodeBuilder getByName(String name) {
     if (name == null || name.trim().isEmpty()) {
       name = name(Location.RANDOM, true, 0);
     }
 
-    NodeBuilder c = registry.get(name);
+    NodeBuilder c = cache.get(name);
     if (c == null) {
-      throw new IllegalArgumentException(name + " not in the registry (" + registry + ")");
+      Supplier<NodeBuilder> s = registry.get(name);
+      if (s == null) {
+        throw new IllegalArgumentException(
+            name + " not in the registry (" + registry.keySet() + ")");
+      }
+      c = s.get();
+      cache.put(name, c);
     }
     return c.copy();
   }
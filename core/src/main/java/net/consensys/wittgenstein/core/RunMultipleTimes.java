@@ -72,6 +72,7 @@ public class RunMultipleTimes<TP extends Protocol> {
         StatsHelper.Stat s = sg.get(c.network().liveNodes());
         res.add(s);
       }
+      c.network().close();
     }
 
     List<StatsHelper.Stat> res = new ArrayList<>();
@@ -0,0 +1,139 @@
+package net.consensys.wittgenstein.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A temporary file, mapped in memory, used to store ints out of the java heap. The file is cut in
+ * pages. A stream is a list of pages: it's written once, read once, and then its pages are reused
+ * by the next streams.
+ *
+ * <p>The file must be closed when it's not used anymore: until then, it keeps a file descriptor
+ * open and its pages mapped.
+ */
+final class SpillFile {
+  private final int pageInts;
+  private final FileChannel channel;
+  private final List<IntBuffer> pages = new ArrayList<>();
+  private int[] freePages = new int[16];
+  private int freeCount = 0;
+
+  SpillFile(int pageInts) {
+    if (pageInts <= 0) {
+      throw new IllegalArgumentException("pageInts=" + pageInts);
+    }
+    this.pageInts = pageInts;
+    try {
+      Path file = Files.createTempFile("wittgenstein", ".spill");
+      file.toFile().deleteOnExit();
+      this.channel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int allocatePage() {
+    if (freeCount > 0) {
+      return freePages[--freeCount];
+    }
+    long bytes = (long) pageInts * Integer.BYTES;
+    try {
+      pages.add(
+          channel.map(FileChannel.MapMode.READ_WRITE, pages.size() * bytes, bytes).asIntBuffer());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return pages.size() - 1;
+  }
+
+  private void freePage(int page) {
+    if (freeCount == freePages.length) {
+      freePages = Arrays.copyOf(freePages, freeCount * 2);
+    }
+    freePages[freeCount++] = page;
+  }
+
+  /**
+   * Closes and deletes the file. The mapped pages can't be unmapped explicitly: they are released
+   * once the buffers are garbage collected, so we drop all the references to them. The file and its
+   * streams can't be used anymore.
+   */
+  void close() {
+    pages.clear();
+    freeCount = 0;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /** @return the number of bytes of the file, used or not. */
+  long fileSize() {
+    return (long) pages.size() * pageInts * Integer.BYTES;
+  }
+
+  final class Stream {
+    private int[] pageIds = new int[4];
+    private int pageCount = 0;
+    private long size = 0;
+    private long readPos = 0;
+
+    void writeInt(int v) {
+      int pos = (int) (size % pageInts);
+      if (pos == 0) {
+        if (pageCount == pageIds.length) {
+          pageIds = Arrays.copyOf(pageIds, pageCount * 2);
+        }
+        pageIds[pageCount++] = allocatePage();
+      }
+      pages.get(pageIds[pageCount - 1]).put(pos, v);
+      size++;
+    }
+
+    boolean hasRemaining() {
+      return readPos < size;
+    }
+
+    int readInt() {
+      if (readPos >= size) {
+        throw new IllegalStateException("end of stream, size=" + size);
+      }
+      int v = pages.get(pageIds[(int) (readPos / pageInts)]).get((int) (readPos % pageInts));
+      readPos++;
+      return v;
+    }
+
+    /** Restarts the reading from the beginning of the stream. */
+    void rewind() {
+      readPos = 0;
+    }
+
+    /** Gives back the pages of this stream to the file. The stream can't be used anymore. */
+    void free() {
+      for (int i = 0; i < pageCount; i++) {
+        freePage(pageIds[i]);
+      }
+      pageCount = 0;
+      size = 0;
+      readPos = 0;
+    }
+  }
+}
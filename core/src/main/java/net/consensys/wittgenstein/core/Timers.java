@@ -0,0 +1,226 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+import net.consensys.wittgenstein.core.utils.LongHashSet;
+
+/**
+ * The timers of the nodes, kept out of the message queue. A timer is a few primitive values in a
+ * heap: due time, sequence, node id and callback slot. There is no envelope nor message object, and
+ * the callbacks are registered once then referenced by their slot.
+ *
+ * <p>The timers due at a given millisecond are fired before the messages arriving at this
+ * millisecond, in the order they were set. A periodic group fires its callback for all its nodes in
+ * a single sweep, by node id. Like for the tasks, nothing is fired on the nodes that are down.
+ *
+ * <p>The id of a timer is (nodeId << 32) + a counter of the node, so it can be given to a node
+ * running in parallel. The ids of the periodic groups are negative.
+ */
+final class Timers<TN extends Node> {
+  private final Network<TN> network;
+  private final List<Callback<TN>> callbacks = new ArrayList<>();
+
+  /** A callback receiving the id of the timer, for the timers managed by the network itself. */
+  interface Callback<TN> {
+    void fire(TN node, long id);
+  }
+
+  /** The heap, sorted by due time then sequence. */
+  private int[] dues = new int[16];
+
+  private long[] seqs = new long[16];
+  private long[] ids = new long[16];
+  private int[] slots = new int[16];
+  private int heapSize = 0;
+  private long lastSeq = 0;
+
+  /** The timers not fired nor cancelled. */
+  private final LongHashSet pending = new LongHashSet();
+
+  /** The last timer id of each node. */
+  private int[] nodeCounters = new int[0];
+
+  private static final class Group {
+    final int slot;
+    final int period;
+    final BitSet nodeIds;
+    boolean cancelled;
+
+    Group(int slot, int period, BitSet nodeIds) {
+      this.slot = slot;
+      this.period = period;
+      this.nodeIds = nodeIds;
+    }
+  }
+
+  private final List<Group> groups = new ArrayList<>();
+
+  Timers(Network<TN> network) {
+    this.network = network;
+  }
+
+  int addCallback(Consumer<TN> callback) {
+    return addIdCallback(
+        (node, id) -> {
+          if (!node.isDown()) {
+            callback.accept(node);
+          }
+        });
+  }
+
+  /** The callback is called even if the node is down. */
+  int addIdCallback(Callback<TN> callback) {
+    callbacks.add(callback);
+    ensureNodes(network.allNodes.size());
+    return callbacks.size() - 1;
+  }
+
+  /** Called when a node is added: the counters of the nodes can't be allocated in parallel. */
+  void ensureNodes(int nodeCount) {
+    if (!callbacks.isEmpty() && nodeCounters.length < nodeCount) {
+      nodeCounters = Arrays.copyOf(nodeCounters, Math.max(nodeCount, nodeCounters.length * 2));
+    }
+  }
+
+  private void checkSlot(int slot) {
+    if (slot < 0 || slot >= callbacks.size()) {
+      throw new IllegalArgumentException("no callback for slot " + slot);
+    }
+  }
+
+  /** @return the id of the timer, to add it with 'add' later if we're running in parallel. */
+  long newId(int slot, int nodeId) {
+    checkSlot(slot);
+    if (nodeId >= nodeCounters.length) {
+      throw new IllegalArgumentException("The node is not in the network, nodeId=" + nodeId);
+    }
+    return ((long) nodeId << 32) + ++nodeCounters[nodeId];
+  }
+
+  void add(long id, int slot, int due) {
+    pending.add(id);
+    push(due, id, slot);
+  }
+
+  long addGroup(int slot, BitSet nodeIds, int startAt, int period) {
+    checkSlot(slot);
+    if (period <= 0) {
+      throw new IllegalArgumentException("period=" + period);
+    }
+    groups.add(new Group(slot, period, (BitSet) nodeIds.clone()));
+    long id = -groups.size();
+    push(startAt, id, slot);
+    return id;
+  }
+
+  void cancel(long id) {
+    if (id < 0) {
+      groups.get((int) (-id - 1)).cancelled = true;
+    } else {
+      pending.remove(id);
+    }
+  }
+
+  /** @return the number of timers and periodic groups not fired nor cancelled. */
+  int size() {
+    int res = pending.size();
+    for (Group g : groups) {
+      res += g.cancelled ? 0 : 1;
+    }
+    return res;
+  }
+
+  /** @return the due time of the first timer, Integer.MAX_VALUE if there is none. */
+  int nextDue() {
+    return heapSize == 0 ? Integer.MAX_VALUE : dues[0];
+  }
+
+  /** Fires all the timers due at 'time', including the ones set while firing. */
+  void fire(int time) {
+    while (heapSize > 0 && dues[0] <= time) {
+      long id = ids[0];
+      int slot = slots[0];
+      pop();
+
+      Callback<TN> callback = callbacks.get(slot);
+      if (id < 0) {
+        Group g = groups.get((int) (-id - 1));
+        if (!g.cancelled) {
+          push(time + g.period, id, slot);
+          for (int n = g.nodeIds.nextSetBit(0); n >= 0; n = g.nodeIds.nextSetBit(n + 1)) {
+            callback.fire(network.allNodes.get(n), id);
+          }
+        }
+      } else if (pending.remove(id)) {
+        callback.fire(network.allNodes.get((int) (id >>> 32)), id);
+      }
+    }
+  }
+
+  private void push(int due, long id, int slot) {
+    if (heapSize == dues.length) {
+      int size = heapSize * 2;
+      dues = Arrays.copyOf(dues, size);
+      seqs = Arrays.copyOf(seqs, size);
+      ids = Arrays.copyOf(ids, size);
+      slots = Arrays.copyOf(slots, size);
+    }
+    long seq = ++lastSeq;
+    int i = heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (before(parent, due, seq)) {
+        break;
+      }
+      move(parent, i);
+      i = parent;
+    }
+    set(i, due, seq, id, slot);
+  }
+
+  private void pop() {
+    heapSize--;
+    if (heapSize == 0) {
+      return;
+    }
+    int due = dues[heapSize];
+    long seq = seqs[heapSize];
+    long id = ids[heapSize];
+    int slot = slots[heapSize];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && before(child + 1, dues[child], seqs[child])) {
+        child++;
+      }
+      if (!before(child, due, seq)) {
+        break;
+      }
+      move(child, i);
+      i = child;
+    }
+    set(i, due, seq, id, slot);
+  }
+
+  /** @return true if the entry at 'pos' is before (due, seq). */
+  private boolean before(int pos, int due, long seq) {
+    return dues[pos] < due || (dues[pos] == due && seqs[pos] < seq);
+  }
+
+  private void move(int from, int to) {
+    set(to, dues[from], seqs[from], ids[from], slots[from]);
+  }
+
+  private void set(int pos, int due, long seq, long id, int slot) {
+    dues[pos] = due;
+    seqs[pos] = seq;
+    ids[pos] = id;
+    slots[pos] = slot;
+  }
+}
@@ -0,0 +1,22 @@
+package net.consensys.wittgenstein.core.messages;
+
+import net.consensys.wittgenstein.core.Node;
+
+/**
+ * A message that can be merged with the other messages sent by the same node to the same node and
+ * arriving at the same millisecond, when the coalescing is enabled with Network#setCoalescing. The
+ * receiver gets a single message, so there is a single envelope and a single call to 'action'.
+ *
+ * <p>Only the messages sent to a single node are coalesced. For example, a message carrying a set
+ * of signatures in a BitSet can be merged by doing a 'or' on the BitSets.
+ */
+public interface Coalescable<TN extends Node> {
+
+  /**
+   * @param next - a message sent after this one, by the same node, to the same node, and arriving
+   *     at the same time. It's not always of the same type as this message.
+   * @return the message received instead of this one and 'next', null if they can't be merged. This
+   *     message and 'next' must not be modified: the merged message is a new message.
+   */
+  Message<TN> coalesce(Message<TN> next);
+}
@@ -1,9 +1,8 @@
 package net.consensys.wittgenstein.core.messages;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Random;
 import net.consensys.wittgenstein.core.Network;
+import net.consensys.wittgenstein.core.P2PNetwork;
 import net.consensys.wittgenstein.core.P2PNode;
 
 /**
@@ -41,16 +40,21 @@ public class FloodMessage<TN extends P2PNode<TN>> extends Message<TN> {
   }
 
   public boolean addToReceived(TN to) {
-    return to.getMsgReceived(msgId()).add(this);
+    return to.getFloodStore().add(to, this);
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public void action(Network<TN> network, TN from, TN to) {
     if (addToReceived(to)) {
       to.onFlood(from, this);
-      List<TN> dest = to.peers.stream().filter(n -> n != from).collect(Collectors.toList());
-      Collections.shuffle(dest, network.rd);
-      network.send(this, network.time + 1 + localDelay, to, dest, delayBetweenPeers);
+      Random rd = network.getRandom(to, Network.RandomStream.SHUFFLE);
+      int sendTime = network.time + 1 + localDelay;
+      if (network instanceof P2PNetwork) {
+        ((P2PNetwork<TN>) network).sendPeers(this, sendTime, to, from, rd, delayBetweenPeers);
+      } else {
+        network.sendShuffled(this, sendTime, to, to.peers, from, rd, delayBetweenPeers);
+      }
     }
   }
 
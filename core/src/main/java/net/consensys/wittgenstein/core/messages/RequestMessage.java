@@ -0,0 +1,43 @@
+package net.consensys.wittgenstein.core.messages;
+
+import net.consensys.wittgenstein.core.Network;
+import net.consensys.wittgenstein.core.Node;
+
+/**
+ * A query and its answer, sent with Network#request. The answer is calculated by the network when
+ * the request arrives, then sent back in the same envelope: there is no answer message, nor any
+ * state to keep in the nodes to match the answers with the queries.
+ *
+ * <p>Like the other messages, a request must be immutable: the same request can be sent to many
+ * nodes.
+ *
+ * @param <R> the type of the answer.
+ */
+public abstract class RequestMessage<TN extends Node, R> extends Message<TN> {
+
+  /**
+   * Called when the request arrives on the node 'to'.
+   *
+   * @return the answer sent back to 'from', null if 'to' doesn't answer.
+   */
+  public abstract R answer(Network<TN> network, TN from, TN to);
+
+  /** Called when the answer of 'to' arrives on 'from', the node that sent the request. */
+  public abstract void onAnswer(Network<TN> network, TN from, TN to, R answer);
+
+  /**
+   * Called on 'from' if the answer did not arrive before the timeout given to Network#request. An
+   * answer arriving after the timeout is ignored.
+   */
+  public void onTimeout(Network<TN> network, TN from, TN to) {}
+
+  /** The size of the answer, to measure the network usage: see Message#size. */
+  public int answerSize(R answer) {
+    return 1;
+  }
+
+  @Override
+  public final void action(Network<TN> network, TN from, TN to) {
+    throw new IllegalStateException("A request must be sent with Network#request: " + this);
+  }
+}
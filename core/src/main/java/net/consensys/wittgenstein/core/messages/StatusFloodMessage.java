@@ -1,6 +1,5 @@
 package net.consensys.wittgenstein.core.messages;
 
-import java.util.Set;
 import net.consensys.wittgenstein.core.P2PNode;
 
 /**
@@ -30,17 +29,13 @@ public class StatusFloodMessage<TN extends P2PNode<TN>> extends FloodMessage<TN>
     return msgId;
   }
 
+  public int seq() {
+    return seq;
+  }
+
   /** We're adding this message to the node's received set only if the seq number is greater. */
   @Override
   public boolean addToReceived(TN to) {
-    Set<?> previousSet = to.getMsgReceived(msgId);
-    Object previous = previousSet.isEmpty() ? null : previousSet.iterator().next();
-    StatusFloodMessage psf = (StatusFloodMessage) previous;
-    if (psf != null && psf.seq >= seq) {
-      return false;
-    }
-    previousSet.clear(); // By definition we want only one element in the set
-    to.getMsgReceived(msgId).add(this);
-    return true;
+    return to.getFloodStore().addStatus(to, this);
   }
 }
@@ -0,0 +1,111 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of positive longs, without boxing. Same implementation as LongIntHashMap, without the
+ * values: open addressing with linear probing.
+ */
+public class LongHashSet {
+  private static final long FREE = -1;
+
+  private long[] keys;
+  private int size = 0;
+  private int mask;
+
+  public LongHashSet() {
+    this(16);
+  }
+
+  public LongHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, FREE);
+    mask = capacity - 1;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(long key) {
+    return key >= 0 && keys[find(key)] == key;
+  }
+
+  /** @return the slot of this key, or of the free slot where it would be inserted. */
+  private int find(long key) {
+    int s = slot(key);
+    while (keys[s] != key && keys[s] != FREE) {
+      s = (s + 1) & mask;
+    }
+    return s;
+  }
+
+  /** @return true if the key was not in the set. */
+  public boolean add(long key) {
+    if (key < 0) {
+      throw new IllegalArgumentException("negative key: " + key);
+    }
+    int s = find(key);
+    if (keys[s] == key) {
+      return false;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+      s = find(key);
+    }
+    keys[s] = key;
+    size++;
+    return true;
+  }
+
+  /** @return true if the key was in the set. */
+  public boolean remove(long key) {
+    if (key < 0) {
+      return false;
+    }
+    int s = find(key);
+    if (keys[s] != key) {
+      return false;
+    }
+
+    // We move back the keys that were after this one, so the probing sequences stay complete.
+    int free = s;
+    int cur = (s + 1) & mask;
+    while (keys[cur] != FREE) {
+      int wanted = slot(keys[cur]);
+      if (((cur - wanted) & mask) >= ((cur - free) & mask)) {
+        keys[free] = keys[cur];
+        free = cur;
+      }
+      cur = (cur + 1) & mask;
+    }
+    keys[free] = FREE;
+    size--;
+    return true;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, FREE);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    allocate(capacity);
+    for (long k : oldKeys) {
+      if (k != FREE) {
+        keys[find(k)] = k;
+      }
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map of positive longs to ints, without boxing. It's an open addressing hash table with linear
+ * probing: we're using it for millions of entries, a java.util.HashMap would need ~50 bytes for
+ * each of them.
+ */
+public class LongIntHashMap {
+  private static final long FREE = -1;
+
+  private long[] keys;
+  private int[] values;
+  private int size = 0;
+  private int mask;
+
+  public LongIntHashMap() {
+    this(16);
+  }
+
+  public LongIntHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, FREE);
+    mask = capacity - 1;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private static void checkKey(long key) {
+    if (key < 0) {
+      throw new IllegalArgumentException("negative key: " + key);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean containsKey(long key) {
+    return key >= 0 && keys[find(key)] == key;
+  }
+
+  /** @return the value for this key, or 'defaultValue' if there is no value for this key. */
+  public int get(long key, int defaultValue) {
+    if (key < 0) {
+      return defaultValue;
+    }
+    int s = find(key);
+    return keys[s] == key ? values[s] : defaultValue;
+  }
+
+  /** @return the slot of this key, or of the free slot where it would be inserted. */
+  private int find(long key) {
+    int s = slot(key);
+    while (keys[s] != key && keys[s] != FREE) {
+      s = (s + 1) & mask;
+    }
+    return s;
+  }
+
+  public void put(long key, int value) {
+    checkKey(key);
+    int s = find(key);
+    if (keys[s] == FREE) {
+      if ((size + 1) * 2 > keys.length) {
+        rehash(keys.length * 2);
+        s = find(key);
+      }
+      keys[s] = key;
+      size++;
+    }
+    values[s] = value;
+  }
+
+  /** @return true if the key was in the map. */
+  public boolean remove(long key) {
+    if (key < 0) {
+      return false;
+    }
+    int s = find(key);
+    if (keys[s] != key) {
+      return false;
+    }
+
+    // We move back the entries that were after this one, so the probing sequences stay complete.
+    int free = s;
+    int cur = (s + 1) & mask;
+    while (keys[cur] != FREE) {
+      int wanted = slot(keys[cur]);
+      if (((cur - wanted) & mask) >= ((cur - free) & mask)) {
+        keys[free] = keys[cur];
+        values[free] = values[cur];
+        free = cur;
+      }
+      cur = (cur + 1) & mask;
+    }
+    keys[free] = FREE;
+    size--;
+    return true;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, FREE);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int s = find(oldKeys[i]);
+        keys[s] = oldKeys[i];
+        values[s] = oldValues[i];
+      }
+    }
+  }
+}
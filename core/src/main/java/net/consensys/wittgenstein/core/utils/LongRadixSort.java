@@ -0,0 +1,68 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sorts positive longs, typically a time and an index packed together, without allocating anything
+ * but the buffer given by the caller. It's a LSD radix sort: we only look at the bits actually used
+ * by the values.
+ */
+public class LongRadixSort {
+  private static final int BITS = 11;
+  private static final int MASK = (1 << BITS) - 1;
+
+  /** Below this size Arrays.sort is faster. */
+  private static final int MIN_SIZE = 256;
+
+  /**
+   * Sorts the 'size' first elements of 'a'.
+   *
+   * @param buffer - an array of at least 'size' elements, used as a working area.
+   * @param counts - an array of at least 2^11 elements, used as a working area.
+   */
+  public static void sort(long[] a, int size, long[] buffer, int[] counts) {
+    if (size < MIN_SIZE) {
+      Arrays.sort(a, 0, size);
+      return;
+    }
+
+    long max = 0;
+    for (int i = 0; i < size; i++) {
+      if (a[i] < 0) {
+        throw new IllegalArgumentException("negative value at " + i + ": " + a[i]);
+      }
+      max = Math.max(max, a[i]);
+    }
+
+    long[] src = a;
+    long[] dst = buffer;
+    for (int shift = 0; shift < 64 && (max >>> shift) != 0; shift += BITS) {
+      Arrays.fill(counts, 0, MASK + 1, 0);
+      for (int i = 0; i < size; i++) {
+        counts[(int) (src[i] >>> shift) & MASK]++;
+      }
+      int pos = 0;
+      for (int d = 0; d <= MASK; d++) {
+        int c = counts[d];
+        counts[d] = pos;
+        pos += c;
+      }
+      for (int i = 0; i < size; i++) {
+        long v = src[i];
+        dst[counts[(int) (v >>> shift) & MASK]++] = v;
+      }
+      long[] t = src;
+      src = dst;
+      dst = t;
+    }
+
+    if (src != a) {
+      System.arraycopy(src, 0, a, 0, size);
+    }
+  }
+
+  /** @return an array that can be used as the 'counts' parameter of sort. */
+  public static int[] newCounts() {
+    return new int[MASK + 1];
+  }
+}
@@ -0,0 +1,48 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.Random;
+
+/**
+ * A java.util.Random using the SplitMix64 generator: no atomic operation on each call, and streams
+ * can be derived from a seed and an id without drawing anything. It's not thread safe.
+ */
+public class SplitMixRandom extends Random {
+  private static final long serialVersionUID = 1L;
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private long state;
+
+  public SplitMixRandom(long seed) {
+    super(0);
+    this.state = seed;
+  }
+
+  /** @return the seed of the stream 'streamId' of the generator seeded with 'seed'. */
+  public static long derive(long seed, long streamId) {
+    return mix64(seed ^ mix64((streamId + 1) * GOLDEN_GAMMA));
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    // Called by the constructor of java.util.Random, it also resets the nextGaussian cache.
+    super.setSeed(seed);
+    this.state = seed;
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    state += GOLDEN_GAMMA;
+    return mix64(state);
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
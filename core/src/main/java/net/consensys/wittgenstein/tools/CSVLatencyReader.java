@@ -279,13 +279,27 @@ public class CSVLatencyReader {
     return dirnames;
   }
 
+  /**
+   * Reads the binary matrix built from the csv files if it's in the classpath (see
+   * LatencyMatrixFile), the csv files otherwise.
+   */
   public CSVLatencyReader() {
+    this(true);
+  }
+
+  private CSVLatencyReader(boolean useBinary) {
     // this.cities = getResourceFiles("/" + DIR_NAME);
-    this.latencyMatrix = makeLatencyMatrix();
+    Map<String, Map<String, Float>> m = useBinary ? LatencyMatrixFile.readResource() : null;
+    this.latencyMatrix = m != null ? m : makeLatencyMatrix();
     Set<String> citiesWitMissingMeasurements = citiesWithMissingMeasurements(latencyMatrix);
     latencyMatrix.keySet().removeAll(citiesWitMissingMeasurements);
   }
 
+  /** @return a reader that ignores the binary matrix and parses the csv files. */
+  public static CSVLatencyReader fromCsvFiles() {
+    return new CSVLatencyReader(false);
+  }
+
   public CSVLatencyReader(Map<String, Map<String, Float>> latencyMatrix) {
     this.latencyMatrix = latencyMatrix;
     Set<String> citiesWitMissingMeasurements = citiesWithMissingMeasurements(latencyMatrix);
@@ -0,0 +1,89 @@
+package net.consensys.wittgenstein.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The latency matrix of the ping files, in a single binary resource generated at build time: it's
+ * much faster to read than the ~240 csv files. The format is: a magic, a version, the number of
+ * cities n, the n city names, then the n*n latencies as floats, NaN when there is no measure.
+ */
+public class LatencyMatrixFile {
+  public static final String RESOURCE = "/Data/LatencyMatrix.bin";
+  private static final int MAGIC = 0x57544C4D;
+  private static final int VERSION = 1;
+
+  public static void write(Map<String, Map<String, Float>> latencyMatrix, OutputStream os)
+      throws IOException {
+    List<String> cities = new ArrayList<>(latencyMatrix.keySet());
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(cities.size());
+    for (String city : cities) {
+      out.writeUTF(city);
+    }
+    for (String cityFrom : cities) {
+      Map<String, Float> latenciesTo = latencyMatrix.get(cityFrom);
+      for (String cityTo : cities) {
+        Float v = latenciesTo.get(cityTo);
+        out.writeFloat(v == null ? Float.NaN : v);
+      }
+    }
+    out.flush();
+  }
+
+  /** @return the latency matrix, with the cities in the same order as when it was written. */
+  public static Map<String, Map<String, Float>> read(InputStream is) throws IOException {
+    byte[] content = is.readAllBytes();
+    ByteArrayInputStream bis = new ByteArrayInputStream(content);
+    DataInputStream in = new DataInputStream(bis);
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("not a latency matrix file, or not the right version");
+    }
+
+    // The names are written with writeUTF, in modified UTF-8: they must be read with readUTF.
+    String[] cities = new String[in.readInt()];
+    for (int i = 0; i < cities.length; i++) {
+      cities[i] = in.readUTF();
+    }
+
+    // The latencies are read directly from the content, it's much faster.
+    ByteBuffer bb = ByteBuffer.wrap(content, content.length - bis.available(), bis.available());
+
+    Map<String, Map<String, Float>> latencyMatrix = new HashMap<>();
+    for (String cityFrom : cities) {
+      Map<String, Float> latenciesTo = new HashMap<>();
+      for (String cityTo : cities) {
+        float v = bb.getFloat();
+        if (!Float.isNaN(v)) {
+          latenciesTo.put(cityTo, v);
+        }
+      }
+      latencyMatrix.put(cityFrom, latenciesTo);
+    }
+    return latencyMatrix;
+  }
+
+  /** @return the latency matrix from the binary resource, null if it's not in the classpath. */
+  public static Map<String, Map<String, Float>> readResource() {
+    try (InputStream is = LatencyMatrixFile.class.getResourceAsStream(RESOURCE)) {
+      return is == null ? null : read(is);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Called by the build: reads the csv files and writes the binary file given as an argument. */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("usage: LatencyMatrixFile <output file>");
+    }
+    File output = new File(args[0]);
+    output.getParentFile().mkdirs();
+    try (OutputStream os = new FileOutputStream(output)) {
+      write(CSVLatencyReader.fromCsvFiles().getLatencyMatrix(), os);
+    }
+  }
+}
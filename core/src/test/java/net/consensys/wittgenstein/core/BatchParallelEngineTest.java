@@ -0,0 +1,215 @@
+package net.consensys.wittgenstein.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import net.consensys.wittgenstein.core.messages.Coalescable;
+import net.consensys.wittgenstein.core.messages.Message;
+import net.consensys.wittgenstein.core.messages.RequestMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchParallelEngineTest {
+  private static final int NODES = 2000;
+
+  /** The slot of the timer callback, the only one registered. */
+  private static final int TIMER = 0;
+
+  static class RNode extends Node {
+    int firstReceived = -1;
+    long received;
+
+    RNode(Network<RNode> network, NodeBuilder nb) {
+      super(network.rd, nb);
+    }
+  }
+
+  static class Relay extends Message<RNode> implements NodeLocalAction, Coalescable<RNode> {
+    final int hop;
+
+    Relay(int hop) {
+      this.hop = hop;
+    }
+
+    @Override
+    public Message<RNode> coalesce(Message<RNode> next) {
+      return next instanceof Relay ? new Relay(Math.min(hop, ((Relay) next).hop)) : null;
+    }
+
+    @Override
+    public void action(Network<RNode> network, RNode from, RNode to) {
+      // The counters of a node are up to date even if its messages are not sent yet.
+      to.received =
+          to.received * 31
+              + hop * (long) network.time
+              + from.nodeId
+              + to.getMsgSent() * 5
+              + to.getBytesSent();
+      if (to.firstReceived >= 0 || hop > 5) {
+        return;
+      }
+      to.firstReceived = network.time;
+
+      List<RNode> dests = new ArrayList<>();
+      for (int k = 1; k <= 4; k++) {
+        dests.add(network.getNodeById((to.nodeId * 31 + k * 17) % NODES));
+      }
+      network.send(new Relay(hop + 1), to, dests);
+      network.send(new Relay(hop + 1), network.time + 10, to, dests.get(0));
+      if (to.nodeId % 7 == 0) {
+        network.send(new Relay(hop + 1), to, to);
+      }
+      if (to.nodeId % 3 == 0) {
+        network.send(new Relay(hop + 2), to, dests.get(3));
+        network.send(new Relay(hop + 1), to, dests.get(3));
+      }
+      if (to.nodeId % 11 == 0) {
+        network.registerTask(() -> to.received++, network.time + 3, to);
+      }
+      if (to.nodeId % 13 == 0) {
+        network.registerPeriodicTask(() -> to.received += 2, network.time + 1, 50, to);
+      }
+      if (to.nodeId % 5 == 0) {
+        network.send(new Global(), to, dests.get(1));
+      }
+      if (to.nodeId % 17 == 0) {
+        long id = network.setTimer(TIMER, to, network.time + 4);
+        if (to.nodeId % 34 == 0) {
+          network.cancelTimer(id);
+        }
+      }
+      if (to.nodeId % 23 == 0) {
+        network.request(new Ask(), to, dests.get(2), to.nodeId % 46 == 0 ? 0 : 60);
+      }
+    }
+  }
+
+  static class Ask extends RequestMessage<RNode, Long> {
+    @Override
+    public Long answer(Network<RNode> network, RNode from, RNode to) {
+      return to.nodeId % 3 == 0 ? null : to.received + network.time;
+    }
+
+    @Override
+    public void onAnswer(Network<RNode> network, RNode from, RNode to, Long answer) {
+      from.received = from.received * 3 + answer;
+    }
+
+    @Override
+    public void onTimeout(Network<RNode> network, RNode from, RNode to) {
+      from.received += 1000 + network.time;
+    }
+  }
+
+  /** Not a NodeLocalAction: it uses the random generator and changes another node. */
+  static class Global extends Message<RNode> {
+    @Override
+    public void action(Network<RNode> network, RNode from, RNode to) {
+      to.received += network.rd.nextInt(10);
+      network.getNodeById(0).received++;
+      if (network.rd.nextBoolean()) {
+        network.send(new Relay(6), to, network.getNodeById(network.rd.nextInt(NODES)));
+      }
+    }
+  }
+
+  static class BadRelay extends Message<RNode> implements NodeLocalAction {
+    @Override
+    public void action(Network<RNode> network, RNode from, RNode to) {
+      network.rd.nextInt();
+    }
+  }
+
+  private static Network<RNode> run(NetworkLatency nl, int threads, Network.Coalescing coalescing) {
+    Network<RNode> network = new Network<>();
+    network.setNetworkLatency(nl);
+    network.setCoalescing(coalescing);
+    NodeBuilder nb = new NodeBuilder.NodeBuilderWithRandomPosition();
+    for (int i = 0; i < NODES; i++) {
+      network.addNode(new RNode(network, nb));
+    }
+    network.setBatchParallelism(threads);
+
+    Assert.assertEquals(
+        TIMER, network.registerTimerCallback(n -> n.received = n.received * 7 + network.time));
+    BitSet group = new BitSet();
+    for (int i = 0; i < NODES; i += 19) {
+      group.set(i);
+    }
+    network.setPeriodicTimer(TIMER, group, 5, 30);
+
+    network.sendAll(new Relay(0), network.getNodeById(0));
+    network.registerConditionalTask(
+        () -> network.getNodeById(1).received++,
+        1,
+        20,
+        network.getNodeById(1),
+        () -> network.getNodeById(1).firstReceived >= 0,
+        () -> true);
+    network.run(5);
+    network.setBatchParallelism(1);
+    return network;
+  }
+
+  private static void check(NetworkLatency nl) {
+    check(nl, Network.Coalescing.NONE);
+  }
+
+  private static void check(NetworkLatency nl, Network.Coalescing coalescing) {
+    Network<RNode> seq = run(nl, 1, coalescing);
+    Network<RNode> par = run(nl, 4, coalescing);
+
+    Assert.assertEquals(seq.time, par.time);
+    Assert.assertEquals(seq.rd.nextLong(), par.rd.nextLong());
+    Assert.assertEquals(seq.msgs.size(), par.msgs.size());
+    Assert.assertEquals(seq.pendingRequests.size(), par.pendingRequests.size());
+    for (int i = 0; i < NODES; i++) {
+      RNode s = seq.getNodeById(i);
+      RNode p = par.getNodeById(i);
+      Assert.assertEquals(s.firstReceived, p.firstReceived);
+      Assert.assertEquals(s.received, p.received);
+      Assert.assertEquals(s.getMsgReceived(), p.getMsgReceived());
+      Assert.assertEquals(s.getMsgSent(), p.getMsgSent());
+      Assert.assertEquals(s.getBytesReceived(), p.getBytesReceived());
+      Assert.assertEquals(s.getBytesSent(), p.getBytesSent());
+    }
+  }
+
+  @Test
+  public void testFixedLatency() {
+    check(new NetworkLatency.NetworkFixedLatency(50));
+  }
+
+  @Test
+  public void testUniformLatency() {
+    check(new NetworkLatency.NetworkUniformLatency(200));
+  }
+
+  @Test
+  public void testLatencyByDistance() {
+    check(new NetworkLatency.NetworkLatencyByDistanceWJitter());
+  }
+
+  @Test
+  public void testCoalescing() {
+    check(new NetworkLatency.NetworkFixedLatency(50), Network.Coalescing.COUNT_MESSAGES);
+    check(new NetworkLatency.NetworkUniformLatency(200), Network.Coalescing.COUNT_MESSAGES);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCountEnvelopesNotAllowed() {
+    new Network<RNode>().setBatchParallelism(2).setCoalescing(Network.Coalescing.COUNT_ENVELOPES);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRandomNotAllowed() {
+    Network<RNode> network = new Network<>();
+    NodeBuilder nb = new NodeBuilder();
+    for (int i = 0; i < 2; i++) {
+      network.addNode(new RNode(network, nb));
+    }
+    network.setBatchParallelism(2);
+    network.send(new BadRelay(), network.getNodeById(0), network.getNodeById(1));
+    network.run(1);
+  }
+}
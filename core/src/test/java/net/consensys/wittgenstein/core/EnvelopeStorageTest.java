@@ -1,9 +1,12 @@
 package net.consensys.wittgenstein.core;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import net.consensys.wittgenstein.core.messages.Message;
+import net.consensys.wittgenstein.core.messages.RequestMessage;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -33,6 +36,8 @@ public class EnvelopeStorageTest {
 
   @Test
   public void testWorkflow() {
+    EventQueue.MinuteSlots slots = new EventQueue.MinuteSlots();
+    network.setEventQueue(slots);
     Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 1);
     Envelope<Node> m2 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 1);
 
@@ -47,11 +52,11 @@ public class EnvelopeStorageTest {
 
     Envelope<Node> m3 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, Network.duration + 1);
     network.msgs.addMsg(m3);
-    Assert.assertEquals(2, network.msgs.msgsBySlot.size());
+    Assert.assertEquals(2, slots.msgsBySlot.size());
 
     network.time = Network.duration + 1;
     network.msgs.addMsg(m3);
-    Assert.assertEquals(1, network.msgs.msgsBySlot.size());
+    Assert.assertEquals(1, slots.msgsBySlot.size());
 
     network.msgs.clear();
     network.run(1);
@@ -113,18 +118,252 @@ public class EnvelopeStorageTest {
 
   @Test
   public void testEdgeCase2() {
+    EventQueue.MinuteSlots slots = new EventQueue.MinuteSlots();
+    network.setEventQueue(slots);
     Assert.assertNull(network.msgs.peek(Network.duration));
     Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, Network.duration);
     network.msgs.addMsg(m1);
     Assert.assertNotNull(network.msgs.peek(Network.duration));
-    Assert.assertEquals(2, network.msgs.msgsBySlot.size());
+    Assert.assertEquals(2, slots.msgsBySlot.size());
   }
 
   @Test
   public void testEdgeCase3() {
     Assert.assertNull(network.msgs.peek(Network.duration));
     Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, Network.duration);
-    Network<Node>.MsgsSlot s = network.msgs.findSlot(59997);
+    EventQueue.MinuteSlots slots = new EventQueue.MinuteSlots();
+    network.setEventQueue(slots);
+    EventQueue.MinuteSlots.MsgsSlot s = slots.findSlot(59997);
     Assert.assertTrue(59997 > s.startTime);
   }
+
+  @Test
+  public void testNextArrivalTime() {
+    network.setEventQueue(new EventQueue.MinuteSlots());
+    Assert.assertEquals(Integer.MAX_VALUE, network.msgs.nextArrivalTime(0));
+
+    Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 10);
+    Envelope<Node> m2 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 3 * Network.duration);
+    network.msgs.addMsg(m1);
+    network.msgs.addMsg(m2);
+
+    Assert.assertEquals(10, network.msgs.nextArrivalTime(0));
+    Assert.assertEquals(10, network.msgs.nextArrivalTime(10));
+    Assert.assertEquals(3 * Network.duration, network.msgs.nextArrivalTime(11));
+    Assert.assertEquals(m1, network.msgs.peekFirst());
+
+    Assert.assertEquals(m1, network.msgs.poll(10));
+    Assert.assertEquals(3 * Network.duration, network.msgs.nextArrivalTime(0));
+    Assert.assertEquals(m2, network.msgs.peekFirst());
+    Assert.assertEquals(Integer.MAX_VALUE, network.msgs.nextArrivalTime(3 * Network.duration + 1));
+  }
+
+  @Test
+  public void testOccupancyBitmap() {
+    OccupancyBitmap ob = new OccupancyBitmap(Network.duration);
+    Assert.assertTrue(ob.isEmpty());
+    Assert.assertEquals(-1, ob.nextSetBit(0));
+
+    ob.set(7);
+    ob.set(64 * 64 + 1);
+    ob.set(Network.duration - 1);
+    Assert.assertFalse(ob.isEmpty());
+    Assert.assertEquals(7, ob.nextSetBit(0));
+    Assert.assertEquals(7, ob.nextSetBit(7));
+    Assert.assertEquals(64 * 64 + 1, ob.nextSetBit(8));
+    Assert.assertEquals(Network.duration - 1, ob.nextSetBit(64 * 64 + 2));
+    Assert.assertEquals(-1, ob.nextSetBit(Network.duration));
+
+    ob.clear(64 * 64 + 1);
+    Assert.assertFalse(ob.get(64 * 64 + 1));
+    Assert.assertEquals(Network.duration - 1, ob.nextSetBit(8));
+    ob.clear(7);
+    ob.clear(Network.duration - 1);
+    Assert.assertTrue(ob.isEmpty());
+  }
+
+  @Test
+  public void testTimingWheel() {
+    Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 10);
+    Envelope<Node> m2 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 3 * Network.duration);
+    Envelope<Node> m3 = new Envelope.SingleDestEnvelope<>(dummy, n0, n2, 1, 3 * Network.duration);
+    Envelope<Node> m4 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 30 * Network.duration);
+    network.msgs.addMsg(m1);
+    network.msgs.addMsg(m2);
+    network.msgs.addMsg(m3);
+    network.msgs.addMsg(m4);
+    Assert.assertEquals(4, network.msgs.size());
+    Assert.assertEquals(2, network.msgs.sizeAt(3 * Network.duration));
+    Assert.assertEquals(m3, network.msgs.peek(3 * Network.duration));
+    Assert.assertEquals(m4, network.msgs.peek(30 * Network.duration));
+
+    Assert.assertEquals(10, network.msgs.nextArrivalTime(0));
+    Assert.assertEquals(m1, network.msgs.poll(10));
+
+    // The wheel can return a time before the actual arrival, but never after.
+    int next = network.msgs.nextArrivalTime(11);
+    Assert.assertTrue(next > 10 && next <= 3 * Network.duration);
+    Assert.assertNull(network.msgs.poll(next));
+    Assert.assertEquals(3 * Network.duration, network.msgs.nextArrivalTime(next));
+    Assert.assertEquals(m3, network.msgs.peekFirst());
+
+    // Same order as with the MinuteSlots: last added first
+    Assert.assertEquals(m3, network.msgs.poll(3 * Network.duration));
+    Assert.assertEquals(m2, network.msgs.poll(3 * Network.duration));
+    Assert.assertNull(network.msgs.poll(3 * Network.duration));
+    Assert.assertEquals(m4, network.msgs.pollFirst());
+    Assert.assertEquals(0, network.msgs.size());
+  }
+
+  /** Runs a simple gossip protocol and returns the list of all the messages received. */
+  private List<String> gossip(EventQueue queue) {
+    Network<Node> net = new Network<>();
+    net.setEventQueue(queue);
+    net.setNetworkLatency(new NetworkLatency.NetworkUniformLatency(5000));
+    NodeBuilder nb = new NodeBuilder();
+    for (int i = 0; i < 50; i++) {
+      net.addNode(new Node(net.rd, nb));
+    }
+    List<String> res = new ArrayList<>();
+
+    class Gossip extends Message<Node> {
+      final int ttl;
+
+      Gossip(int ttl) {
+        this.ttl = ttl;
+      }
+
+      @Override
+      public void action(Network<Node> network, Node from, Node to) {
+        res.add(network.time + ":" + from.nodeId + "->" + to.nodeId + ":" + ttl);
+        if (ttl > 0) {
+          List<Node> dests = new ArrayList<>();
+          for (int i = 0; i < 3; i++) {
+            dests.add(network.getNodeById(network.rd.nextInt(network.allNodes.size())));
+          }
+          int sendTime = network.time + 1 + network.rd.nextInt(3) * network.rd.nextInt(400_000);
+          network.send(new Gossip(ttl - 1), sendTime, to, dests, network.rd.nextInt(2) * 5);
+        }
+      }
+    }
+
+    for (Node n : net.allNodes) {
+      net.send(new Gossip(4), n, net.allNodes.subList(0, 5));
+      net.registerTask(() -> res.add("task:" + net.time), 1 + net.rd.nextInt(10_000_000), n);
+    }
+    net.runH(4);
+    Assert.assertEquals(0, net.msgs.size());
+    return res;
+  }
+
+  @Test
+  public void testTimingWheelSameRunAsMinuteSlots() {
+    List<String> slots = gossip(new EventQueue.MinuteSlots());
+    List<String> wheel = gossip(new EventQueue.TimingWheel());
+    Assert.assertTrue(slots.size() > 10_000);
+    Assert.assertEquals(slots, wheel);
+  }
+
+  @Test
+  public void testSpilling() {
+    EventQueue.Spilling queue = new EventQueue.Spilling(new EventQueue.TimingWheel(), 1000, 80);
+    network.setEventQueue(queue);
+
+    Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 10);
+    Envelope<Node> m2 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 5000);
+    Envelope<Node> m3 = new Envelope.SingleDestEnvelope<>(dummy, n0, n2, 1, 5000);
+    Envelope<Node> m4 = new Envelope.SingleDestEnvelope<>(dummy, n0, n3, 1, 5000);
+    Envelope<Node> m5 = new Envelope.SingleDestEnvelope<>(dummy, n1, n3, 1, 5001);
+    network.msgs.addMsg(m1);
+    network.msgs.addMsg(m2);
+    Assert.assertTrue(queue.spilled.isEmpty());
+
+    // Over budget: m3 is spilled, m4 as well as they are in the same block.
+    network.msgs.addMsg(m3);
+    network.msgs.addMsg(m4);
+    network.msgs.addMsg(m5);
+    Assert.assertEquals(1, queue.spilled.size());
+    Assert.assertEquals(80, queue.getHeapSize());
+    Assert.assertEquals(5, network.msgs.size());
+    Assert.assertEquals(5, network.msgs.peekMessages().size());
+
+    Assert.assertEquals(m1, network.msgs.poll(10));
+    int next = network.msgs.nextArrivalTime(11);
+    Assert.assertTrue(next > 10 && next <= 5000);
+    Assert.assertEquals(n3.nodeId, network.msgs.peekFirst().getNextDestId());
+
+    // Loaded back, in the same order: last added first.
+    Assert.assertNull(network.msgs.poll(4000));
+    Assert.assertTrue(queue.spilled.isEmpty());
+    Assert.assertEquals(n3.nodeId, network.msgs.poll(5000).getNextDestId());
+    Assert.assertEquals(n2.nodeId, network.msgs.poll(5000).getNextDestId());
+    Assert.assertEquals(m2, network.msgs.poll(5000));
+    Assert.assertNull(network.msgs.poll(5000));
+    Assert.assertEquals(n1.nodeId, network.msgs.poll(5001).getFromId());
+    Assert.assertEquals(0, network.msgs.size());
+    Assert.assertEquals(0, queue.getHeapSize());
+  }
+
+  @Test
+  public void testSpillingRequest() {
+    EventQueue.Spilling queue = new EventQueue.Spilling(new EventQueue.TimingWheel(), 1000, 0);
+    network.setEventQueue(queue);
+    RequestMessage<Node, Integer> request =
+        new RequestMessage<>() {
+          @Override
+          public Integer answer(Network<Node> network, Node from, Node to) {
+            return 1;
+          }
+
+          @Override
+          public void onAnswer(Network<Node> network, Node from, Node to, Integer answer) {}
+        };
+
+    Envelope<Node> m1 = new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 5000);
+    Envelope<Node> m2 = new Envelope.RequestEnvelope<>(request, 0, 2, 1, 5000, 0, 0);
+    Envelope<Node> m3 = new Envelope.SingleDestEnvelope<>(dummy, n0, n3, 1, 5000);
+    network.msgs.addMsg(m1);
+    network.msgs.addMsg(m2);
+    network.msgs.addMsg(m3);
+    Assert.assertEquals(1, queue.spilled.size());
+    Assert.assertEquals(3, network.msgs.peekMessages().size());
+
+    // The request stays on the heap but keeps its place.
+    Assert.assertNull(network.msgs.poll(4000));
+    Assert.assertEquals(n3.nodeId, network.msgs.poll(5000).getNextDestId());
+    Assert.assertSame(m2, network.msgs.poll(5000));
+    Assert.assertEquals(n1.nodeId, network.msgs.poll(5000).getNextDestId());
+    Assert.assertEquals(0, network.msgs.size());
+  }
+
+  @Test
+  public void testSpillingClose() {
+    EventQueue.Spilling queue = new EventQueue.Spilling(new EventQueue.TimingWheel(), 1000, 0);
+    network.setEventQueue(queue);
+    network.msgs.addMsg(new Envelope.SingleDestEnvelope<>(dummy, n0, n1, 1, 5000));
+    SpillFile file = queue.file;
+    Assert.assertTrue(file.isOpen());
+
+    // The messages are dropped, the file is closed, the queue can still be used.
+    network.close();
+    Assert.assertFalse(file.isOpen());
+    Assert.assertNull(queue.file);
+    Assert.assertEquals(0, network.msgs.size());
+    network.msgs.addMsg(new Envelope.SingleDestEnvelope<>(dummy, n0, n2, 1, 5000));
+    Assert.assertTrue(queue.file.isOpen());
+    Assert.assertEquals(n2.nodeId, network.msgs.poll(5000).getNextDestId());
+
+    // Replacing the queue closes its file.
+    file = queue.file;
+    network.setEventQueue(new EventQueue.TimingWheel());
+    Assert.assertFalse(file.isOpen());
+    Assert.assertNull(queue.file);
+  }
+
+  @Test
+  public void testSpillingSameRunAsTimingWheel() {
+    List<String> wheel = gossip(new EventQueue.TimingWheel());
+    List<String> spilling = gossip(new EventQueue.Spilling(new EventQueue.TimingWheel(), 2000, 0));
+    Assert.assertEquals(wheel, spilling);
+  }
 }
@@ -3,6 +3,7 @@ package net.consensys.wittgenstein.core;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import net.consensys.wittgenstein.core.geoinfo.Geo;
@@ -97,7 +98,7 @@ public class NetworkLatencyTest {
         int l = nl.getLatency(f, t, 1);
         if (f == t) {
           Assert.assertEquals(1, l);
-        } else if (f.cityName.equals(t.cityName)) {
+        } else if (f.cityId == t.cityId) {
           Assert.assertTrue(l > 0);
         } else {
           Assert.assertTrue(
@@ -107,6 +108,147 @@ public class NetworkLatencyTest {
     }
   }
 
+  @Test
+  public void testCitiesLatencyMatrix() {
+    CSVLatencyReader lr = new CSVLatencyReader();
+    Map<String, Map<String, Float>> lm = lr.getLatencyMatrix();
+    NetworkLatency.NetworkLatencyByCity nl = new NetworkLatency.NetworkLatencyByCity();
+
+    for (String f : lm.keySet()) {
+      Assert.assertEquals(f, Node.cityName(Node.cityId(f)));
+      for (String t : lm.keySet()) {
+        Float l = lm.get(f).get(t);
+        if (l == null) {
+          l = lm.get(t).get(f);
+        }
+        Assert.assertEquals(l, nl.getLatency(f, t), 0);
+      }
+    }
+  }
+
+  private static void checkCompiled(NetworkLatency nl, NodeBuilder nb) {
+    Network<Node> network = new Network<>();
+    for (int i = 0; i < 200; i++) {
+      network.addNode(new Node(network.rd, nb));
+    }
+    network.setNetworkLatency(nl);
+    network.compileNetworkLatency(true);
+    Assert.assertNotSame(nl, network.networkLatency);
+    Assert.assertEquals(nl.toString(), network.networkLatency.toString());
+    Assert.assertEquals(nl.getMinLatency(), network.networkLatency.getMinLatency());
+
+    NetworkLatency compiled = nl.compile(network);
+    for (Node f : network.allNodes) {
+      for (Node t : network.allNodes) {
+        for (int delta = 0; delta < 100; delta += 7) {
+          Assert.assertEquals(nl.getLatency(f, t, delta), compiled.getLatency(f, t, delta));
+          network.networkLatency.getLatency(f, t, delta);
+        }
+      }
+    }
+    checkLatencies(nl, network.allNodes);
+    checkLatencies(network.networkLatency, network.allNodes);
+  }
+
+  /** Checks that the latencies calculated together are the ones calculated one by one. */
+  private static void checkLatencies(NetworkLatency nl, List<Node> nodes) {
+    int[] dests = nodes.stream().mapToInt(n -> n.nodeId).toArray();
+    int[] out = new int[dests.length];
+    for (Node f : nodes) {
+      for (int randomSeed = 0; randomSeed < 3; randomSeed++) {
+        nl.getLatencies(nodes, f, dests, dests.length, randomSeed, out);
+        for (Node t : nodes) {
+          int delta = Network.getPseudoRandom(t.nodeId, randomSeed);
+          Assert.assertEquals(nl.getLatency(f, t, delta), out[t.nodeId]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDistances() {
+    short[] roots = NetworkLatency.Distances.Roots.ROOTS;
+    for (int d2 = 0; d2 < roots.length; d2++) {
+      Assert.assertEquals((int) Math.sqrt(d2), roots[d2]);
+    }
+    Assert.assertEquals(Node.MAX_DIST, roots[Node.MAX_DIST2]);
+
+    NodeBuilder nb = new NodeBuilder.NodeBuilderWithRandomPosition();
+    Network<Node> network = new Network<>();
+    for (int i = 0; i < NetworkLatency.Distances.MAX_PAIR_NODES + 1; i++) {
+      network.addNode(new Node(network.rd, nb));
+    }
+    NetworkLatency.Distances all = new NetworkLatency.Distances(network.allNodes);
+    NetworkLatency.Distances pairs = new NetworkLatency.Distances(network.allNodes.subList(0, 100));
+    Node other = new Node(network.rd, new NodeBuilder.NodeBuilderWithRandomPosition());
+    for (Node f : network.allNodes.subList(0, 200)) {
+      Assert.assertEquals(f.dist(other), pairs.dist(f, other));
+      Assert.assertEquals(other.dist(f), pairs.dist(other, f));
+      for (Node t : network.allNodes) {
+        Assert.assertEquals(f.dist(t), all.dist(f, t));
+        Assert.assertEquals(f.dist(t), pairs.dist(f, t));
+      }
+    }
+  }
+
+  @Test
+  public void testLatencies() {
+    Network<Node> network = new Network<>();
+    NodeBuilder nb =
+        new NodeBuilder.NodeBuilderWithCity(new CSVLatencyReader().cities(), new GeoAllCities());
+    for (int i = 0; i < 200; i++) {
+      network.addNode(new Node(network.rd, nb));
+    }
+    checkLatencies(new NetworkLatency.NetworkLatencyByCity(), network.allNodes);
+    checkLatencies(new NetworkLatency.NetworkUniformLatency(100), network.allNodes);
+  }
+
+  @Test
+  public void testCompiled() {
+    checkCompiled(
+        new NetworkLatency.NetworkLatencyByDistanceWJitter(),
+        new NodeBuilder.NodeBuilderWithRandomPosition());
+    checkCompiled(
+        new NetworkLatency.IC3NetworkLatency(), new NodeBuilder.NodeBuilderWithRandomPosition());
+    checkCompiled(
+        new NetworkLatency.AwsRegionNetworkLatency(),
+        new NodeBuilder.NodeBuilderWithCity(
+            NetworkLatency.AwsRegionNetworkLatency.cities(), new GeoAWS()));
+    checkCompiled(
+        new NetworkLatency.NetworkLatencyByCityWJitter(),
+        new NodeBuilder.NodeBuilderWithCity(new CSVLatencyReader().cities(), new GeoAllCities()));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCompiledVerification() {
+    NetworkLatency bad =
+        new NetworkLatency.VerifiedNetworkLatency(
+            new NetworkLatency.NetworkFixedLatency(10), new NetworkLatency.NetworkFixedLatency(11));
+    bad.getLatency(n1, n2, 0);
+  }
+
+  @Test
+  public void testRegistry() {
+    RegistryNetworkLatencies r = new RegistryNetworkLatencies();
+    String name = RegistryNetworkLatencies.name(RegistryNetworkLatencies.Type.FIXED, 100);
+    Assert.assertSame(r.getByName(name), r.getByName(name));
+    Assert.assertEquals(100, r.getByName(name).getLatency(n1, n2, 0));
+
+    NetworkLatency nl = r.getByName("IC3NetworkLatency");
+    Assert.assertTrue(nl instanceof NetworkLatency.IC3NetworkLatency);
+    Assert.assertSame(nl, r.getByName("IC3NetworkLatency"));
+    Assert.assertSame(r.getByName(null), r.getByName("NetworkLatencyByDistanceWJitter"));
+
+    NodeBuilder nb1 = RegistryNodeBuilders.singleton.getByName(null);
+    NodeBuilder nb2 = RegistryNodeBuilders.singleton.getByName(null);
+    Assert.assertNotSame(nb1, nb2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRegistryUnknownName() {
+    RegistryNodeBuilders.singleton.getByName("NOT_A_BUILDER");
+  }
+
   @Test
   public void testEstimateLatency() {
     NetworkLatency nl = new NetworkLatency.EthScanNetworkLatency();
@@ -3,7 +3,9 @@ package net.consensys.wittgenstein.core;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import net.consensys.wittgenstein.core.messages.Coalescable;
 import net.consensys.wittgenstein.core.messages.Message;
+import net.consensys.wittgenstein.core.messages.RequestMessage;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -90,8 +92,13 @@ public class NetworkTest {
     network.send(act, n1, dests);
 
     Assert.assertEquals(4, network.msgs.size());
+    Assert.assertEquals(6, network.msgs.pendingDeliveries());
+    Assert.assertEquals(4, network.msgs.sizeInMinute(0));
+    Assert.assertEquals(0, network.msgs.sizeInMinute(1));
     network.run(1);
     Assert.assertEquals(0, network.msgs.size());
+    Assert.assertEquals(0, network.msgs.pendingDeliveries());
+    Assert.assertEquals(0, network.msgs.sizeInMinute(0));
     Assert.assertEquals(6, a1.get());
     Assert.assertEquals(14, a2.get());
   }
@@ -177,8 +184,12 @@ public class NetworkTest {
     network.send(act, 58998, n0, Arrays.asList(n1, n2, n3), 1000);
 
     Assert.assertEquals(1, network.msgs.size());
+    Assert.assertEquals(3, network.msgs.pendingDeliveries());
     network.runMs(59000);
     Assert.assertEquals(1, network.msgs.size());
+    Assert.assertEquals(2, network.msgs.pendingDeliveries());
+    Assert.assertEquals(0, network.msgs.sizeInMinute(0));
+    Assert.assertEquals(1, network.msgs.sizeInMinute(1));
     network.runMs(3000);
     Assert.assertEquals(0, network.msgs.size());
     Assert.assertEquals(3, ab.get());
@@ -186,16 +197,11 @@ public class NetworkTest {
 
   @Test
   public void testMsgArrival() {
-    List<Network.MessageArrival> mas =
-        network.createMessageArrivals(m, 1, n0, List.of(n1, n2, n3), 1, 10);
-    Assert.assertEquals(3, mas.size());
-    Collections.sort(mas);
-    Assert.assertEquals(2, mas.get(0).arrival);
-    Assert.assertEquals(13, mas.get(1).arrival);
-    Assert.assertEquals(24, mas.get(2).arrival);
-
-    Envelope.MultipleDestWithDelayEnvelope<Node> e =
-        new Envelope.MultipleDestWithDelayEnvelope<>(m, n0, mas, 1);
+    network.send(m, 1, n0, new int[] {1, 2, 3}, 3, 10);
+    Assert.assertEquals(3, n0.getMsgSent());
+    Envelope<?> e = network.msgs.pollFirst();
+    Assert.assertTrue(e instanceof Envelope.MultipleDestWithDelayEnvelope);
+
     Assert.assertEquals(2, e.nextArrivalTime(network));
     e.markRead();
     Assert.assertEquals(13, e.nextArrivalTime(network));
@@ -206,68 +212,102 @@ public class NetworkTest {
     Assert.assertFalse(e.hasNextReader());
   }
 
-  @Test
-  public void testMsgArrivalWithRandomNoDelay() {
-    Network<Node> network = new Network<>();
-    NodeBuilder nb = new NodeBuilder.NodeBuilderWithRandomPosition();
-    Node n0 = new Node(network.rd, nb);
-    Node n1 = new Node(network.rd, nb);
-    Node n2 = new Node(network.rd, nb);
-    Node n3 = new Node(network.rd, nb);
-    network.setNetworkLatency(new NetworkLatency.NetworkLatencyByDistanceWJitter());
-    network.addNode(n0);
-    network.addNode(n1);
-    network.addNode(n2);
-    network.addNode(n3);
+  /** @return the arrivals, as "time:nodeId", calculated one by one with the latency model. */
+  private static List<String> expectedArrivals(
+      Network<Node> net, Node from, List<Node> dests, int sendTime, int randomSeed, int delays) {
+    List<int[]> arrivals = new ArrayList<>();
+    for (Node to : dests) {
+      if (!from.isDown() && !to.isDown()) {
+        int lat = net.getLatency(from, to, Network.getPseudoRandom(to.nodeId, randomSeed));
+        arrivals.add(new int[] {sendTime + lat, to.nodeId});
+      }
+      sendTime += delays + (delays > 0 ? 1 : 0);
+    }
+    arrivals.sort(Comparator.comparingInt(a -> a[0]));
 
-    network.networkLatency = new NetworkLatency.NetworkLatencyByDistanceWJitter();
-    List<Network.MessageArrival> mas =
-        network.createMessageArrivals(m, 1, n0, List.of(n1, n2, n3), 2, 0);
-    Assert.assertEquals(3, mas.size());
-    Collections.sort(mas);
+    List<String> res = new ArrayList<>();
+    for (int[] a : arrivals) {
+      res.add(a[0] + ":" + a[1]);
+    }
+    return res;
+  }
 
-    Envelope.MultipleDestEnvelope<Node> e = new Envelope.MultipleDestEnvelope<>(m, n0, mas, 1, 2);
-    Assert.assertEquals(2, e.randomSeed);
-    Assert.assertEquals(mas.get(0).arrival, e.nextArrivalTime(network));
-    e.markRead();
-    Assert.assertEquals(mas.get(1).arrival, e.nextArrivalTime(network));
-    e.markRead();
-    Assert.assertEquals(mas.get(2).arrival, e.nextArrivalTime(network));
-    Assert.assertTrue(e.hasNextReader());
-    e.markRead();
-    Assert.assertFalse(e.hasNextReader());
+  /** @return the arrivals, as "time:nodeId", of all the destinations of this envelope. */
+  private static List<String> arrivals(Network<?> net, Envelope<?> e) {
+    List<String> res = new ArrayList<>();
+    while (e.hasNextReader()) {
+      res.add(e.nextArrivalTime(net) + ":" + e.getNextDestId());
+      e.markRead();
+    }
+    return res;
   }
 
-  @Test
-  public void testMsgArrivalWithRandom() {
+  private static Network<Node> randomPositionNetwork() {
     Network<Node> network = new Network<>();
     NodeBuilder nb = new NodeBuilder.NodeBuilderWithRandomPosition();
-    Node n0 = new Node(network.rd, nb);
-    Node n1 = new Node(network.rd, nb);
-    Node n2 = new Node(network.rd, nb);
-    Node n3 = new Node(network.rd, nb);
     network.setNetworkLatency(new NetworkLatency.NetworkLatencyByDistanceWJitter());
-    network.addNode(n0);
-    network.addNode(n1);
-    network.addNode(n2);
-    network.addNode(n3);
+    for (int i = 0; i < 4; i++) {
+      network.addNode(new Node(network.rd, nb));
+    }
+    return network;
+  }
+
+  @Test
+  public void testMsgArrivalWithRandomNoDelay() {
+    Network<Node> network = randomPositionNetwork();
+    network.send(m, 1, network.getNodeById(0), new int[] {1, 2, 3}, 3, 0);
+    Envelope<?> e = network.msgs.pollFirst();
+    Assert.assertTrue(e instanceof Envelope.MultipleDestEnvelope);
 
-    network.networkLatency = new NetworkLatency.NetworkLatencyByDistanceWJitter();
-    List<Network.MessageArrival> mas =
-        network.createMessageArrivals(m, 1, n0, List.of(n1, n2, n3), 1, 20);
-    Assert.assertEquals(3, mas.size());
-    Collections.sort(mas);
+    int seed = ((Envelope.MultipleDestEnvelope<?>) e).randomSeed;
+    List<String> expected =
+        expectedArrivals(
+            network, network.getNodeById(0), network.allNodes.subList(1, 4), 1, seed, 0);
+    Assert.assertEquals(3, expected.size());
+    Assert.assertEquals(expected, arrivals(network, e));
+  }
 
-    Envelope.MultipleDestWithDelayEnvelope<Node> e =
-        new Envelope.MultipleDestWithDelayEnvelope<>(m, n0, mas, 1);
-    Assert.assertEquals(mas.get(0).arrival, e.nextArrivalTime(network));
-    e.markRead();
-    Assert.assertEquals(mas.get(1).arrival, e.nextArrivalTime(network));
-    e.markRead();
-    Assert.assertEquals(mas.get(2).arrival, e.nextArrivalTime(network));
-    Assert.assertTrue(e.hasNextReader());
+  @Test
+  public void testMsgArrivalCalculatedOnce() {
+    AtomicInteger calls = new AtomicInteger();
+    network.setNetworkLatency(
+        new NetworkLatency() {
+          @Override
+          protected int getExtendedLatency(Node from, Node to, int delta) {
+            calls.incrementAndGet();
+            return 10 + to.nodeId;
+          }
+        });
+    network.send(m, 1, n0, new int[] {1, 2, 3}, 3, 0);
+    // Once per destination to sort them, and once more when the envelope is queued.
+    Assert.assertEquals(4, calls.get());
+
+    Envelope<?> e = network.msgs.pollFirst();
+    Assert.assertTrue(e instanceof Envelope.MultipleDestEnvelope);
+    Assert.assertEquals(12, e.nextArrivalTime(network));
+    Assert.assertEquals(12, e.nextArrivalTime(network));
+    Assert.assertEquals(4, calls.get());
     e.markRead();
-    Assert.assertFalse(e.hasNextReader());
+    Assert.assertEquals(13, e.nextArrivalTime(network));
+    Assert.assertEquals(13, e.nextArrivalTime(network));
+    Assert.assertEquals(5, calls.get());
+  }
+
+  @Test
+  public void testMsgArrivalWithRandom() {
+    Network<Node> network = randomPositionNetwork();
+    network.rd.setSeed(1);
+    network.send(m, 1, network.getNodeById(0), new int[] {1, 2, 3}, 3, 20);
+    Envelope<?> e = network.msgs.pollFirst();
+    Assert.assertTrue(e instanceof Envelope.MultipleDestWithDelayEnvelope);
+
+    network.rd.setSeed(1);
+    int seed = network.rd.nextInt();
+    List<String> expected =
+        expectedArrivals(
+            network, network.getNodeById(0), network.allNodes.subList(1, 4), 1, seed, 20);
+    Assert.assertEquals(3, expected.size());
+    Assert.assertEquals(expected, arrivals(network, e));
   }
 
   @Test
@@ -334,15 +374,10 @@ public class NetworkTest {
     Envelope<?> e = network.msgs.pollFirst();
     Assert.assertNotNull(e);
     Assert.assertTrue(e instanceof Envelope.MultipleDestEnvelope);
-    Envelope.MultipleDestEnvelope mm = (Envelope.MultipleDestEnvelope) e;
-
-    List<Network.MessageArrival> mas =
-        network.createMessageArrivals(m, 1, n0, Arrays.asList(n1, n2, n3), mm.randomSeed, 0);
+    int seed = ((Envelope.MultipleDestEnvelope<?>) e).randomSeed;
 
-    for (Network.MessageArrival ma : mas) {
-      Assert.assertEquals(ma.arrival, e.nextArrivalTime(network));
-      e.markRead();
-    }
+    Assert.assertEquals(
+        expectedArrivals(network, n0, List.of(n1, n2, n3), 1, seed, 0), arrivals(network, e));
   }
 
   @Test
@@ -419,6 +454,18 @@ public class NetworkTest {
     net.send(act, n3, n0);
     Assert.assertNull(net.msgs.peekFirst());
     net.msgs.clear();
+
+    // A node added during the partition
+    Node n4 = new Node(network.rd, nb);
+    net.addNode(n4);
+    Assert.assertEquals(2, net.partitionId(n4));
+    Assert.assertTrue(net.samePartition(n3, n4));
+    Assert.assertFalse(net.samePartition(n2, n4));
+
+    net.endPartition();
+    Assert.assertTrue(net.samePartition(n0, n4));
+    net.send(act, n1, n2);
+    Assert.assertNotNull(net.msgs.peekFirst());
   }
 
   @Test
@@ -504,4 +551,437 @@ public class NetworkTest {
     network.runMs(1000);
     Assert.assertEquals(2, ai.get());
   }
+
+  @Test
+  public void testSparseLongRun() {
+    final List<Integer> times = new ArrayList<>();
+    network.registerPeriodicTask(() -> times.add(network.time), 1, 10 * 60 * 1000, n0);
+    network.registerConditionalTask(
+        () -> times.add(-network.time), 90 * 60 * 1000, 1, n1, () -> true, () -> false);
+
+    network.runH(2);
+    Assert.assertEquals(2 * 3600 * 1000, network.time);
+    Assert.assertEquals(13, times.size());
+    for (int i = 0; i < 9; i++) {
+      Assert.assertEquals(1 + i * 10 * 60 * 1000, times.get(i).intValue());
+    }
+    Assert.assertEquals(-90 * 60 * 1000, times.get(9).intValue());
+    Assert.assertEquals(1 + 90 * 60 * 1000, times.get(10).intValue());
+  }
+
+  @Test
+  public void testConditionalTaskWakeOnSignal() {
+    final AtomicBoolean ab = new AtomicBoolean(false);
+    final AtomicInteger checks = new AtomicInteger(0);
+    final AtomicInteger ai = new AtomicInteger(0);
+    network.registerConditionalTask(
+        ai::getAndIncrement,
+        1000,
+        100,
+        n0,
+        () -> {
+          checks.incrementAndGet();
+          return ab.get();
+        },
+        () -> true,
+        true);
+
+    network.runMs(5000);
+    Assert.assertEquals(0, ai.get());
+    Assert.assertEquals(1, checks.get());
+
+    // Without the signal the task is not checked again.
+    ab.set(true);
+    network.runMs(1000);
+    Assert.assertEquals(0, ai.get());
+
+    network.wakeUpConditionalTasks(n0);
+    network.runMs(1);
+    Assert.assertEquals(1, ai.get());
+
+    ab.set(false);
+    network.runMs(1000);
+    Assert.assertEquals(1, ai.get());
+
+    ab.set(true);
+    network.wakeUpConditionalTasks(n1);
+    network.runMs(1000);
+    Assert.assertEquals(1, ai.get());
+
+    network.wakeUpConditionalTasks(n0);
+    network.runMs(1);
+    Assert.assertEquals(2, ai.get());
+  }
+
+  private static List<String> receptions(int mode, int delays) {
+    Network<Node> net = new Network<>();
+    net.setNetworkLatency(new NetworkLatency.NetworkUniformLatency(300));
+    NodeBuilder nb = new NodeBuilder();
+    for (int i = 0; i < 1000; i++) {
+      net.addNode(new Node(net.rd, nb));
+    }
+    net.getNodeById(7).stop();
+
+    List<String> res = new ArrayList<>();
+    Message<Node> msg =
+        new Message<>() {
+          @Override
+          public void action(Network<Node> network, Node from, Node to) {
+            res.add(network.time + ":" + to.nodeId);
+          }
+        };
+
+    List<Node> dests = new ArrayList<>();
+    BitSet bs = new BitSet();
+    for (int i = 1; i < 1000; i += 2) {
+      dests.add(net.getNodeById(i));
+      bs.set(i);
+    }
+    int[] ids = dests.stream().mapToInt(n -> n.nodeId).toArray();
+    Node from = net.getNodeById(0);
+    if (mode == 3) {
+      // The arrivals as calculated one by one, with the seed the send would have used.
+      return expectedArrivals(net, from, dests, 1, net.rd.nextInt(), delays);
+    }
+    if (mode == 0) {
+      net.send(msg, 1, from, dests, delays);
+    } else if (mode == 1) {
+      net.send(msg, 1, from, ids, ids.length, delays);
+    } else {
+      net.send(msg, 1, from, bs);
+    }
+    net.run(20);
+    res.add("sent=" + from.getMsgSent() + ", next=" + net.rd.nextInt());
+    return res;
+  }
+
+  @Test
+  public void testTimers() {
+    List<String> events = new ArrayList<>();
+    int slot = network.registerTimerCallback(n -> events.add(n.nodeId + "@" + network.time));
+    Message<Node> act =
+        new Message<>() {
+          @Override
+          public void action(Network<Node> network, Node from, Node to) {
+            events.add("msg@" + network.time);
+          }
+        };
+
+    network.sendArriveAt(act, 10, n0, n0);
+    network.setTimer(slot, n1, 10);
+    network.setTimer(slot, n0, 10);
+    network.setTimer(slot, n2, 5);
+    long cancelled = network.setTimer(slot, n3, 7);
+    network.cancelTimer(cancelled);
+    BitSet group = new BitSet();
+    group.set(3);
+    group.set(1);
+    long periodic = network.setPeriodicTimer(slot, group, 20, 10);
+    Assert.assertEquals(4, network.timerCount());
+    Assert.assertEquals(1, network.msgs.size());
+
+    network.runMs(35);
+    Assert.assertEquals(
+        List.of("2@5", "1@10", "0@10", "msg@10", "1@20", "3@20", "1@30", "3@30"), events);
+    Assert.assertEquals(1, network.timerCount());
+    Assert.assertEquals(0, n1.getMsgReceived());
+
+    events.clear();
+    n1.stop();
+    network.runMs(10);
+    Assert.assertEquals(List.of("3@40"), events);
+
+    events.clear();
+    network.cancelTimer(periodic);
+    network.runMs(100);
+    Assert.assertTrue(events.isEmpty());
+    Assert.assertEquals(0, network.timerCount());
+  }
+
+  /** Answers the id of the node receiving the request, except node 2. */
+  static class Ask extends RequestMessage<Node, Integer> {
+    final List<String> events;
+
+    Ask(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public Integer answer(Network<Node> network, Node from, Node to) {
+      events.add("ask " + to.nodeId + "@" + network.time);
+      return to.nodeId == 2 ? null : to.nodeId;
+    }
+
+    @Override
+    public void onAnswer(Network<Node> network, Node from, Node to, Integer answer) {
+      events.add("answer " + answer + "@" + network.time);
+    }
+
+    @Override
+    public void onTimeout(Network<Node> network, Node from, Node to) {
+      events.add("timeout " + to.nodeId + "@" + network.time);
+    }
+
+    @Override
+    public int answerSize(Integer answer) {
+      return 10;
+    }
+  }
+
+  @Test
+  public void testRequest() {
+    List<String> events = new ArrayList<>();
+    Ask ask = new Ask(events);
+    network.request(ask, n0, n1);
+    network.request(ask, n0, n2);
+    Assert.assertEquals(2, network.pendingRequests(n0));
+    Assert.assertEquals(2, network.msgs.size());
+
+    network.runMs(3);
+    Assert.assertEquals(List.of("ask 2@2", "ask 1@2"), events);
+    Assert.assertEquals(1, network.msgs.size());
+    Assert.assertEquals(1, network.pendingRequests(n0));
+
+    network.runMs(10);
+    Assert.assertEquals(List.of("ask 2@2", "ask 1@2", "answer 1@4"), events);
+    Assert.assertEquals(0, network.pendingRequests(n0));
+    Assert.assertEquals(0, network.msgs.size());
+
+    Assert.assertEquals(2, n0.getMsgSent());
+    Assert.assertEquals(1, n0.getMsgReceived());
+    Assert.assertEquals(10, n0.getBytesReceived());
+    Assert.assertEquals(1, n1.getMsgSent());
+    Assert.assertEquals(10, n1.getBytesSent());
+    Assert.assertEquals(1, n1.getMsgReceived());
+    Assert.assertEquals(1, n2.getMsgReceived());
+    Assert.assertEquals(0, n2.getMsgSent());
+  }
+
+  @Test
+  public void testRequestTimeout() {
+    network.setNetworkLatency(new NetworkLatency.NetworkFixedLatency(20));
+    List<String> events = new ArrayList<>();
+    Ask ask = new Ask(events);
+    network.request(ask, n0, n1, 30);
+    network.request(ask, n0, n3, 100);
+    network.request(ask, n0, n2, 50);
+    n3.stop();
+    Assert.assertEquals(3, network.pendingRequests(n0));
+    Assert.assertEquals(3, network.timerCount());
+
+    network.runMs(200);
+    Assert.assertEquals(
+        List.of("ask 2@21", "ask 1@21", "timeout 1@30", "timeout 2@50", "timeout 3@100"), events);
+    Assert.assertEquals(0, network.pendingRequests(n0));
+    Assert.assertEquals(0, network.timerCount());
+    // The late answer arrived, but it was ignored
+    Assert.assertEquals(1, n0.getMsgReceived());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRequestWithSend() {
+    network.send(new Ask(new ArrayList<>()), n0, n1);
+    network.runMs(10);
+  }
+
+  /** Carries a set of signatures: two sets are merged with a 'or'. */
+  static class Sigs extends Message<Node> implements Coalescable<Node> {
+    final BitSet sigs;
+    final List<String> received;
+
+    Sigs(List<String> received, int... sigs) {
+      this.received = received;
+      this.sigs = new BitSet();
+      for (int sig : sigs) {
+        this.sigs.set(sig);
+      }
+    }
+
+    Sigs(List<String> received, BitSet sigs) {
+      this.received = received;
+      this.sigs = sigs;
+    }
+
+    @Override
+    public Message<Node> coalesce(Message<Node> next) {
+      if (!(next instanceof Sigs)) {
+        return null;
+      }
+      BitSet merged = (BitSet) sigs.clone();
+      merged.or(((Sigs) next).sigs);
+      return new Sigs(received, merged);
+    }
+
+    @Override
+    public int size() {
+      return 4 + sigs.cardinality() * 10;
+    }
+
+    @Override
+    public void action(Network<Node> network, Node from, Node to) {
+      received.add(from.nodeId + "->" + to.nodeId + " " + sigs + "@" + network.time);
+    }
+  }
+
+  private List<String> sendSigs() {
+    List<String> received = new ArrayList<>();
+    network.send(new Sigs(received, 1), n0, n1);
+    network.send(m, n0, n1);
+    network.send(new Sigs(received, 2, 3), n0, n1);
+    network.send(new Sigs(received, 4), n0, n2);
+    network.send(new Sigs(received, 5), n2, n1);
+    network.send(new Sigs(received, 6), 2, n0, n1);
+    network.send(new Sigs(received, 3, 7), n0, n1);
+    return received;
+  }
+
+  @Test
+  public void testNoCoalescing() {
+    List<String> received = sendSigs();
+    Assert.assertEquals(7, network.msgs.size());
+    network.runMs(10);
+    Assert.assertEquals(6, received.size());
+    Assert.assertEquals(6, n1.getMsgReceived());
+  }
+
+  @Test
+  public void testCoalescingCountMessages() {
+    network.setCoalescing(Network.Coalescing.COUNT_MESSAGES);
+    List<String> received = sendSigs();
+    Assert.assertEquals(5, network.msgs.size());
+
+    network.runMs(10);
+    Assert.assertEquals(
+        List.of("2->1 {5}@2", "0->2 {4}@2", "0->1 {1, 2, 3, 7}@2", "0->1 {6}@3"), received);
+    Assert.assertEquals(6, n1.getMsgReceived());
+    Assert.assertEquals(1 + 14 + 24 + 24 + 14 + 14, n1.getBytesReceived());
+    Assert.assertEquals(6, n0.getMsgSent());
+    Assert.assertEquals(1 + 14 + 24 + 24 + 14 + 14, n0.getBytesSent());
+  }
+
+  @Test
+  public void testCoalescingCountEnvelopes() {
+    network.setCoalescing(Network.Coalescing.COUNT_ENVELOPES);
+    List<String> received = sendSigs();
+    Assert.assertEquals(5, network.msgs.size());
+
+    network.runMs(10);
+    Assert.assertEquals(4, received.size());
+    Assert.assertEquals(4, n1.getMsgReceived());
+    Assert.assertEquals(1 + 44 + 14 + 14, n1.getBytesReceived());
+    Assert.assertEquals(4, n0.getMsgSent());
+    Assert.assertEquals(1 + 44 + 14 + 14, n0.getBytesSent());
+  }
+
+  @Test
+  public void testTimersOrder() {
+    List<String> fired = new ArrayList<>();
+    int slot = network.registerTimerCallback(n -> fired.add(n.nodeId + "@" + network.time));
+    List<Node> nodes = List.of(n0, n1, n2, n3);
+    List<int[]> timers = new ArrayList<>();
+    Random rd = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      int due = 1 + rd.nextInt(50);
+      int node = rd.nextInt(nodes.size());
+      network.setTimer(slot, nodes.get(node), due);
+      timers.add(new int[] {due, node});
+    }
+    network.runMs(100);
+
+    // Sorted by due time, then in the order they were set
+    timers.sort(Comparator.comparingInt(t -> t[0]));
+    List<String> expected = new ArrayList<>();
+    for (int[] t : timers) {
+      expected.add(t[1] + "@" + t[0]);
+    }
+    Assert.assertEquals(expected, fired);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTimerInThePast() {
+    network.setTimer(network.registerTimerCallback(n -> {}), n0, network.time);
+  }
+
+  @Test
+  public void testSendShuffled() {
+    List<Node> dests = List.of(n0, n1, n2, n3);
+    List<Node> expected = new ArrayList<>(List.of(n0, n2, n3));
+    Collections.shuffle(expected, new Random(5));
+
+    Map<Node, Integer> arrivals = new HashMap<>();
+    Message<Node> act =
+        new Message<>() {
+          @Override
+          public void action(Network<Node> network, Node from, Node to) {
+            arrivals.put(to, network.time);
+          }
+        };
+    Random rd = new Random(5);
+    network.sendShuffled(act, 1, n0, dests, n1, rd, 10);
+    network.run(1);
+
+    List<Node> actual = new ArrayList<>(arrivals.keySet());
+    actual.sort(Comparator.comparingInt(arrivals::get));
+    Assert.assertEquals(expected, actual);
+    Random check = new Random(5);
+    Collections.shuffle(new ArrayList<>(expected), check);
+    Assert.assertEquals(check.nextInt(), rd.nextInt());
+  }
+
+  @Test
+  public void testRandomStreams() {
+    Assert.assertSame(network.rd, network.getRandom(n1, Network.RandomStream.SHUFFLE));
+
+    Network<Node> net1 = new Network<>();
+    Network<Node> net2 = new Network<>();
+    net1.useRandomStreams();
+    net2.useRandomStreams();
+    net1.rd.setSeed(12);
+    net2.rd.setSeed(12);
+    NodeBuilder nb1 = new NodeBuilder();
+    NodeBuilder nb2 = new NodeBuilder();
+    Node a1 = new Node(net1.rd, nb1);
+    Node b1 = new Node(net1.rd, nb1);
+    Node a2 = new Node(net2.rd, nb2);
+    Node b2 = new Node(net2.rd, nb2);
+    net1.addNode(a1);
+    net1.addNode(b1);
+    net2.addNode(a2);
+    net2.addNode(b2);
+
+    // The streams of a node don't depend on what the other nodes draw.
+    int[] vals = new int[4];
+    vals[0] = net1.getRandom(a1, Network.RandomStream.PROTOCOL).nextInt();
+    vals[1] = net1.getRandom(b1, Network.RandomStream.PROTOCOL).nextInt();
+    vals[2] = net1.getRandom(a1, Network.RandomStream.PROTOCOL).nextInt();
+    vals[3] = net1.getRandom(a1, Network.RandomStream.SHUFFLE).nextInt();
+    net2.getRandom(b2, Network.RandomStream.SHUFFLE).nextInt();
+    Assert.assertEquals(vals[0], net2.getRandom(a2, Network.RandomStream.PROTOCOL).nextInt());
+    Assert.assertEquals(vals[2], net2.getRandom(a2, Network.RandomStream.PROTOCOL).nextInt());
+    Assert.assertEquals(vals[3], net2.getRandom(a2, Network.RandomStream.SHUFFLE).nextInt());
+    Assert.assertEquals(vals[1], net2.getRandom(b2, Network.RandomStream.PROTOCOL).nextInt());
+    Assert.assertNotEquals(vals[0], vals[1]);
+    Assert.assertEquals(net1.rd.nextLong(), net2.rd.nextLong());
+
+    // A new seed restarts all the streams.
+    net1.rd.setSeed(12);
+    Assert.assertEquals(vals[0], net1.getRandom(a1, Network.RandomStream.PROTOCOL).nextInt());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRandomStreamsAfterNodes() {
+    network.useRandomStreams();
+  }
+
+  @Test
+  public void testSendToIds() {
+    List<String> ref = receptions(0, 0);
+    Assert.assertEquals(499 + 1, ref.size());
+    Assert.assertEquals(receptions(3, 0), ref.subList(0, 499));
+    Assert.assertEquals(ref, receptions(1, 0));
+    Assert.assertEquals(ref, receptions(2, 0));
+    ref = receptions(0, 3);
+    Assert.assertEquals(receptions(3, 3), ref.subList(0, 499));
+    Assert.assertEquals(ref, receptions(1, 3));
+  }
 }
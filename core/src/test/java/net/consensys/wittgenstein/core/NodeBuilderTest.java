@@ -1,5 +1,15 @@
 package net.consensys.wittgenstein.core;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.consensys.wittgenstein.core.geoinfo.CityInfo;
+import net.consensys.wittgenstein.core.geoinfo.GeoAWS;
+import net.consensys.wittgenstein.core.geoinfo.GeoAllCities;
+import net.consensys.wittgenstein.core.messages.SendMessage;
+import net.consensys.wittgenstein.tools.CSVLatencyReader;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -17,4 +27,137 @@ public class NodeBuilderTest {
 
     Assert.assertTrue(nb.getY(2077261824) >= 0);
   }
+
+  @Test
+  public void testColumns() {
+    NodeBuilder nb = new NodeBuilder();
+    Random rd = new Random(0);
+    Node n0 = new Node(rd, nb);
+    Node n1 = new Node(rd, nb);
+    n0.addMsgSent(10);
+    n1.addMsgReceived(20);
+    n1.setExternal(
+        new External() {
+          @Override
+          public <TN extends Node> List<SendMessage> receive(EnvelopeInfo<TN> ei) {
+            return List.of();
+          }
+        });
+
+    NodeBuilder copy = nb.copy();
+    Node c0 = new Node(rd, copy);
+    Assert.assertEquals(n0.nodeId, c0.nodeId);
+    Assert.assertEquals(0, c0.getMsgSent());
+    Assert.assertNull(c0.getExternal());
+
+    for (int i = 0; i < 100; i++) {
+      new Node(rd, nb);
+    }
+    Assert.assertEquals(1, n0.getMsgSent());
+    Assert.assertEquals(10, n0.getBytesSent());
+    Assert.assertEquals(0, n0.getMsgReceived());
+    Assert.assertEquals(1, n1.getMsgReceived());
+    Assert.assertEquals(20, n1.getBytesReceived());
+    Assert.assertNull(n0.getExternal());
+    Assert.assertNotNull(n1.getExternal());
+    n1.setExternal(null);
+    Assert.assertNull(n1.getExternal());
+
+    Assert.assertArrayEquals(n0.getHash256(), c0.getHash256());
+    Assert.assertEquals(32, n1.getHash256().length);
+    Assert.assertFalse(Arrays.equals(n0.getHash256(), n1.getHash256()));
+    Assert.assertEquals(Node.DEFAULT_CITY, n0.getCityName());
+  }
+
+  /** The linear scan the city selection must give the same results as. */
+  private static String scanCity(NodeBuilder.NodeBuilderWithCity nb, int rdInt) {
+    int size = nb.cities.size();
+    int rand = Math.abs(rdInt) % size;
+    float p = (float) rand / size;
+    for (Map.Entry<String, CityInfo> cityInfo : nb.citiesInfo.entrySet()) {
+      if (p <= cityInfo.getValue().cumulativeProbability) {
+        return cityInfo.getKey();
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testCitySelection() {
+    for (NodeBuilder.NodeBuilderWithCity nb :
+        List.of(
+            new NodeBuilder.NodeBuilderWithCity(
+                new CSVLatencyReader().cities(), new GeoAllCities()),
+            new NodeBuilder.NodeBuilderWithCity(
+                NetworkLatency.AwsRegionNetworkLatency.cities(), new GeoAWS()))) {
+      Random rd = new Random(0);
+      for (int i = 0; i < 20_000; i++) {
+        int rdInt = i == 0 ? Integer.MIN_VALUE : rd.nextInt();
+        String city = scanCity(nb, rdInt);
+        Assert.assertEquals(city, nb.getCityName(rdInt));
+        Assert.assertEquals(nb.citiesInfo.get(city).mercX, nb.getX(rdInt));
+        Assert.assertEquals(nb.citiesInfo.get(city).mercY, nb.getY(rdInt));
+      }
+    }
+  }
+
+  @Test
+  public void testCityIdsConcurrent() throws InterruptedException {
+    int count = Node.cityCount();
+    Thread[] threads = new Thread[4];
+    int[][] ids = new int[threads.length][100];
+    for (int t = 0; t < threads.length; t++) {
+      int[] res = ids[t];
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < res.length; i++) {
+                  res[i] = Node.cityId("testCityIdsConcurrent-" + i);
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    Assert.assertEquals(count + 100, Node.cityCount());
+    for (int[] res : ids) {
+      Assert.assertArrayEquals(ids[0], res);
+    }
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals("testCityIdsConcurrent-" + i, Node.cityName(ids[0][i]));
+    }
+    Assert.assertEquals(Node.DEFAULT_CITY, Node.cityName(Node.DEFAULT_CITY_ID));
+  }
+
+  @Test
+  public void testCopyHashConcurrent() throws InterruptedException {
+    NodeBuilder nb = new NodeBuilder();
+    NodeBuilder copy = nb.copy();
+    byte[][] expected = new byte[1000][];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = nb.getHash(i);
+    }
+
+    AtomicInteger errors = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      NodeBuilder b = t % 2 == 0 ? nb : copy;
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < expected.length; i++) {
+                  if (!Arrays.equals(expected[i], b.getHash(i))) {
+                    errors.incrementAndGet();
+                  }
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(0, errors.get());
+  }
 }
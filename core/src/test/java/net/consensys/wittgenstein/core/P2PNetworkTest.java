@@ -1,8 +1,10 @@
 package net.consensys.wittgenstein.core;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import net.consensys.wittgenstein.core.messages.FloodMessage;
+import net.consensys.wittgenstein.core.messages.Message;
 import net.consensys.wittgenstein.core.messages.StatusFloodMessage;
 import net.consensys.wittgenstein.core.utils.MoreMath;
 import org.junit.Assert;
@@ -158,6 +160,61 @@ public class P2PNetworkTest {
     Assert.assertEquals(m2, n1.getMsgReceived(m2.msgId()).iterator().next());
   }
 
+  @Test
+  public void testCompactFloodStore() {
+    network.setFloodStore(new FloodStore.Compact<>(network, 0));
+    testFloodMessageTestWithDelay();
+    for (P2PNodeTest n : network.allNodes) {
+      Assert.assertEquals(1, n.getMsgReceivedCount(-1));
+      Assert.assertNull(n.received);
+    }
+  }
+
+  @Test
+  public void testCompactFloodStoreStatus() {
+    network.setFloodStore(new FloodStore.Compact<>(network, 0));
+    testStatusFloodMessageTest();
+    Assert.assertEquals(1, n1.getMsgReceivedCount(1));
+    Assert.assertEquals(0, n1.getMsgReceivedCount(3));
+  }
+
+  @Test
+  public void testCompactFloodStoreExpiry() {
+    network.setFloodStore(new FloodStore.Compact<>(network, 10));
+    FloodMessage<P2PNodeTest> m = new FloodMessage<>(1, 0, 0);
+    Assert.assertTrue(m.addToReceived(n0));
+    Assert.assertFalse(m.addToReceived(n0));
+    Assert.assertEquals(1, n0.getMsgReceivedCount(-1));
+
+    network.runMs(20);
+    Assert.assertTrue(new FloodMessage<P2PNodeTest>(1, 0, 0).addToReceived(n1));
+    Assert.assertEquals(0, n0.getMsgReceivedCount(-1));
+    Assert.assertEquals(1, n1.getMsgReceivedCount(-1));
+    Assert.assertTrue(m.addToReceived(n0));
+  }
+
+  @Test
+  public void testCompactFloodStoreExpiryRemovesIds() {
+    FloodStore.Compact<P2PNodeTest> store = new FloodStore.Compact<>(network, 10);
+    network.setFloodStore(store);
+    FloodMessage<P2PNodeTest> m =
+        new FloodMessage<>(1, 0, 0) {
+          @Override
+          public long msgId() {
+            return -2;
+          }
+        };
+    Assert.assertTrue(m.addToReceived(n0));
+    Assert.assertEquals(1, store.size());
+
+    // The id -2 has no message left once expired.
+    network.runMs(20);
+    Assert.assertTrue(new FloodMessage<P2PNodeTest>(1, 0, 0).addToReceived(n1));
+    Assert.assertEquals(1, store.size());
+    Assert.assertEquals(0, n0.getMsgReceivedCount(-2));
+    Assert.assertEquals(1, n1.getMsgReceivedCount(-1));
+  }
+
   @Test
   public void testPeerRemoval() {
     final List<P2PNodeTest> n0Peers = n0.peers;
@@ -168,4 +225,96 @@ public class P2PNetworkTest {
     Assert.assertFalse(n0RemovedPeers.peers.contains(n0));
     Assert.assertEquals((n0P - 1), n0.peers.size());
   }
+
+  @Test
+  public void testPeerList() {
+    List<P2PNodeTest> before = new ArrayList<>(n0.peers);
+    P2PNodeTest removed = before.get(0);
+    P2PNodeTest added = network.getNodeById(network.allNodes.size() - 1);
+    if (before.contains(added)) {
+      network.removeLink(n0, added);
+      before.remove(added);
+    }
+    network.removeLink(n0, removed);
+    network.createLink(n0, added);
+
+    // The links keep their creation order, and the list is a view on them.
+    before.remove(removed);
+    before.add(added);
+    Assert.assertEquals(before, n0.peers);
+    Assert.assertTrue(added.peers.contains(n0));
+    Assert.assertEquals(n0.nodeId, added.getPeerId(added.peers.size() - 1));
+    for (int i = 0; i < n0.peers.size(); i++) {
+      Assert.assertEquals(n0.peers.get(i).nodeId, n0.getPeerId(i));
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testPeerListReadOnly() {
+    n0.peers.add(n1);
+  }
+
+  @Test
+  public void testLinkLatencies() {
+    P2PNetwork<P2PNodeTest> net = new P2PNetwork<>(10, true);
+    NodeBuilder nb = new NodeBuilder.NodeBuilderWithRandomPosition();
+    for (int i = 0; i < 300; i++) {
+      net.addNode(new P2PNodeTest(net.rd, nb));
+    }
+    net.setNetworkLatency(new NetworkLatency.NetworkLatencyByDistanceWJitter());
+    net.setPeers();
+    net.getNodeById(0).extraLatency = 50;
+    net.removeLink(net.getNodeById(1), net.getNodeById(1).peers.get(0));
+    net.createLink(net.getNodeById(1), net.getNodeById(2));
+
+    Message<P2PNodeTest> m =
+        new Message<>() {
+          @Override
+          public void action(Network<P2PNodeTest> network, P2PNodeTest from, P2PNodeTest to) {}
+        };
+    int sendTime = 0;
+    for (NetworkLatency nl :
+        new NetworkLatency[] {
+          net.networkLatency,
+          new NetworkLatency.IC3NetworkLatency(),
+          net.networkLatency.compile(net)
+        }) {
+      net.setNetworkLatency(nl);
+      for (P2PNodeTest f : net.allNodes) {
+        // With a delay between the messages the arrival times are kept in the envelope. The
+        //  envelopes are read from the queue, so each send must arrive after the previous ones.
+        sendTime += 1000;
+        net.rd.setSeed(f.nodeId);
+        net.sendPeers(m, sendTime, f, f.peers.get(0), new Random(f.nodeId), 2);
+        List<String> withLinks = arrivals(net, net.msgs.pollFirst());
+        net.rd.setSeed(f.nodeId);
+        net.sendShuffled(m, sendTime, f, f.peers, f.peers.get(0), new Random(f.nodeId), 2);
+        List<String> withModel = arrivals(net, net.msgs.pollFirst());
+        Assert.assertEquals(f.peers.size() - 1, withLinks.size());
+        Assert.assertEquals(withModel, withLinks);
+
+        NetworkLatency.LinkValueLatency lvl = (NetworkLatency.LinkValueLatency) nl;
+        for (int i = 0; i < f.peers.size(); i++) {
+          Assert.assertEquals(lvl.getLinkValue(f, f.peers.get(i)), f.getLinkValue(i));
+        }
+      }
+    }
+
+    // The link values are calculated when the link is created, as the model didn't change.
+    P2PNodeTest a = net.getNodeById(3);
+    P2PNodeTest b = net.getNodeById(a.peers.contains(net.getNodeById(4)) ? 5 : 4);
+    net.createLink(a, b);
+    NetworkLatency.LinkValueLatency lvl = (NetworkLatency.LinkValueLatency) net.networkLatency;
+    Assert.assertEquals(lvl.getLinkValue(a, b), a.getLinkValue(a.peers.size() - 1));
+    Assert.assertEquals(lvl.getLinkValue(b, a), b.getLinkValue(b.peers.size() - 1));
+  }
+
+  private static List<String> arrivals(Network<?> net, Envelope<?> e) {
+    List<String> res = new ArrayList<>();
+    while (e.hasNextReader()) {
+      res.add(e.nextArrivalTime(net) + ":" + e.getNextDestId());
+      e.markRead();
+    }
+    return res;
+  }
 }
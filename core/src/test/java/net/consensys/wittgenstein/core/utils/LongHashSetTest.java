@@ -0,0 +1,42 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+  @Test
+  public void testSameAsHashSet() {
+    Random rd = new Random(0);
+    LongHashSet s = new LongHashSet();
+    Set<Long> ref = new HashSet<>();
+
+    for (int i = 0; i < 200_000; i++) {
+      long k = ((long) rd.nextInt(300) << 32) | rd.nextInt(300);
+      if (rd.nextInt(3) == 0) {
+        Assert.assertEquals(ref.remove(k), s.remove(k));
+      } else {
+        Assert.assertEquals(ref.add(k), s.add(k));
+      }
+      Assert.assertEquals(ref.size(), s.size());
+    }
+
+    for (long k : ref) {
+      Assert.assertTrue(s.contains(k));
+    }
+    Assert.assertFalse(s.contains(Long.MAX_VALUE));
+    Assert.assertFalse(s.contains(-1));
+
+    s.clear();
+    Assert.assertEquals(0, s.size());
+    Assert.assertFalse(s.contains(ref.iterator().next()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeKey() {
+    new LongHashSet().add(-1);
+  }
+}
@@ -0,0 +1,38 @@
+package net.consensys.wittgenstein.core.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongIntHashMapTest {
+
+  @Test
+  public void testSameAsHashMap() {
+    Random rd = new Random(0);
+    LongIntHashMap m = new LongIntHashMap();
+    Map<Long, Integer> ref = new HashMap<>();
+
+    for (int i = 0; i < 200_000; i++) {
+      long k = ((long) rd.nextInt(300) << 32) | rd.nextInt(300);
+      if (rd.nextInt(3) == 0) {
+        Assert.assertEquals(ref.remove(k) != null, m.remove(k));
+      } else {
+        ref.put(k, i);
+        m.put(k, i);
+      }
+      Assert.assertEquals(ref.size(), m.size());
+    }
+
+    for (long k : ref.keySet()) {
+      Assert.assertTrue(m.containsKey(k));
+      Assert.assertEquals(ref.get(k).intValue(), m.get(k, -1));
+    }
+    Assert.assertEquals(-1, m.get(Long.MAX_VALUE, -1));
+
+    m.clear();
+    Assert.assertEquals(0, m.size());
+    Assert.assertFalse(m.containsKey(ref.keySet().iterator().next()));
+  }
+}
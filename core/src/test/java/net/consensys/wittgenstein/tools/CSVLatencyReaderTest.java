@@ -1,5 +1,9 @@
 package net.consensys.wittgenstein.tools;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import org.junit.Assert;
@@ -25,6 +29,36 @@ public class CSVLatencyReaderTest {
     Assert.assertTrue(reader.cities().size() > 0);
   }
 
+  @Test
+  public void testBinaryMatrix() throws IOException {
+    Map<String, Map<String, Float>> csv = CSVLatencyReader.fromCsvFiles().getLatencyMatrix();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    LatencyMatrixFile.write(csv, bos);
+    Map<String, Map<String, Float>> bin =
+        LatencyMatrixFile.read(new ByteArrayInputStream(bos.toByteArray()));
+
+    Assert.assertEquals(new ArrayList<>(csv.keySet()), new ArrayList<>(bin.keySet()));
+    for (String cityFrom : csv.keySet()) {
+      for (String cityTo : csv.keySet()) {
+        Assert.assertEquals(csv.get(cityFrom).get(cityTo), bin.get(cityFrom).get(cityTo));
+      }
+    }
+  }
+
+  @Test
+  public void testBinaryMatrixNames() throws IOException {
+    // Written in modified UTF-8: the NUL char and the chars outside the BMP are encoded differently
+    String c1 = "S\u00e3o\u0000Paulo";
+    String c2 = "City\uD83C\uDF0D";
+    Map<String, Map<String, Float>> m = new HashMap<>();
+    m.put(c1, new HashMap<>(Map.of(c1, 30f, c2, 100f)));
+    m.put(c2, new HashMap<>(Map.of(c2, 30f)));
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    LatencyMatrixFile.write(m, bos);
+
+    Assert.assertEquals(m, LatencyMatrixFile.read(new ByteArrayInputStream(bos.toByteArray())));
+  }
+
   @Test
   public void testSupportedCities() {
     Assert.assertTrue(reader.cities().contains(city1));
@@ -106,6 +106,7 @@ public class ENRGossiping implements Protocol {
   public ENRGossiping(ENRParameters params) {
     this.params = params;
     this.network = new P2PNetwork<>(params.totalPeers, true);
+    this.network.setFloodStore(new FloodStore.Compact<>(network, 0));
     this.nb = RegistryNodeBuilders.singleton.getByName(params.nodeBuilderName);
     this.network.setNetworkLatency(
         RegistryNetworkLatencies.singleton.getByName(params.networkLatencyName));
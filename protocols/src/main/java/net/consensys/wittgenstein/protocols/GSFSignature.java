@@ -552,6 +552,7 @@ public class GSFSignature implements Protocol {
         l.individualSignatures.set(from.nodeId);
       }
       sigQueueSize = toVerify.size();
+      network.wakeUpConditionalTasks(this);
     }
 
     public void checkSigs() {
@@ -592,13 +593,13 @@ public class GSFSignature implements Protocol {
           + ", sigs="
           + verifiedSignatures.cardinality()
           + ", msgReceived="
-          + msgReceived
+          + getMsgReceived()
           + ", msgSent="
-          + msgSent
+          + getMsgSent()
           + ", KBytesSent="
-          + bytesSent / 1024
+          + getBytesSent() / 1024
           + ", KBytesReceived="
-          + bytesReceived / 1024
+          + getBytesReceived() / 1024
           + '}';
     }
   }
@@ -629,7 +630,13 @@ public class GSFSignature implements Protocol {
         n.initLevel();
         network.registerPeriodicTask(n::doCycle, 1, params.periodDurationMs, n);
         network.registerConditionalTask(
-            n::checkSigs, 1, n.nodePairingTime, n, () -> !n.toVerify.isEmpty(), () -> !n.done);
+            n::checkSigs,
+            1,
+            n.nodePairingTime,
+            n,
+            () -> !n.toVerify.isEmpty(),
+            () -> !n.done,
+            true);
       }
     }
   }
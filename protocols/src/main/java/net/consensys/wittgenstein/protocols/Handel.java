@@ -783,6 +783,7 @@ public class Handel implements Protocol {
       sigQueueSize++;
       l.toVerifyAgg.add(
           new SigToVerify(from.nodeId, l.level, receptionRanks[from.nodeId], cs, ssigs.badSig));
+      network.wakeUpConditionalTasks(this);
     }
 
     private SigToVerify chooseBestFromLevels(List<SigToVerify> bestByLevels) {
@@ -979,7 +980,13 @@ public class Handel implements Protocol {
         network.registerPeriodicTask(
             n::dissemination, n.startAt + 1, params.disseminationPeriodMs, n);
         network.registerConditionalTask(
-            n::checkSigs, n.startAt + 1, n.nodePairingTime, n, n::hasSigToVerify, () -> !n.done);
+            n::checkSigs,
+            n.startAt + 1,
+            n.nodePairingTime,
+            n,
+            n::hasSigToVerify,
+            () -> !n.done,
+            true);
       }
     }
 
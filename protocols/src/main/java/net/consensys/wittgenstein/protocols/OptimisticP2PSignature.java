@@ -142,13 +142,13 @@ public class OptimisticP2PSignature implements Protocol {
           + ", sigs="
           + verifiedSignatures.cardinality()
           + ", msgReceived="
-          + msgReceived
+          + getMsgReceived()
           + ", msgSent="
-          + msgSent
+          + getMsgSent()
           + ", KBytesSent="
-          + bytesSent / 1024
+          + getBytesSent() / 1024
           + ", KBytesReceived="
-          + bytesReceived / 1024
+          + getBytesReceived() / 1024
           + '}';
     }
   }
@@ -37,7 +37,7 @@ public class P2PFlood implements Protocol {
 
     @Override
     public void onFlood(P2PFloodNode from, FloodMessage floodMessage) {
-      if (getMsgReceived(floodMessage.msgId()).size() == params.msgCount) {
+      if (getMsgReceivedCount(floodMessage.msgId()) == params.msgCount) {
         doneAt = network.time;
       }
     }
@@ -111,6 +111,7 @@ public class P2PFlood implements Protocol {
   public P2PFlood(P2PFloodParameters params) {
     this.params = params;
     this.network = new P2PNetwork<>(params.peersCount, true);
+    this.network.setFloodStore(new FloodStore.Compact<>(network, 0));
     this.nb = RegistryNodeBuilders.singleton.getByName(params.nodeBuilderName);
     this.network.setNetworkLatency(
         RegistryNetworkLatencies.singleton.getByName(params.networkLatencyName));
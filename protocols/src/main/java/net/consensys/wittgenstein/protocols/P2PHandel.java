@@ -327,6 +327,7 @@ public class P2PHandel implements Protocol {
       peersState.get(from.nodeId).or(sigs);
       // We add what it sent us to our verification list.
       toVerify.add(sigs);
+      network.wakeUpConditionalTasks(this);
     }
 
     /**
@@ -502,7 +503,13 @@ public class P2PHandel implements Protocol {
 
       // We also check signatures before sending them.
       network.registerConditionalTask(
-          n::checkSigs, 1, params.pairingTime, n, () -> !n.toVerify.isEmpty(), () -> n.doneAt == 0);
+          n::checkSigs,
+          1,
+          params.pairingTime,
+          n,
+          () -> !n.toVerify.isEmpty(),
+          () -> n.doneAt == 0,
+          true);
     }
 
     network.setPeers();
@@ -15,16 +15,16 @@ public class PingPong implements Protocol {
 
   /**
    * Messages, exchanged on the network, are specific to the protocol. Here we have two messages:
-   * Ping & Pong.
+   * Ping & Pong. They only change the node receiving them, so they can be executed in parallel.
    */
-  static class Ping extends Message<PingPongNode> {
+  static class Ping extends Message<PingPongNode> implements NodeLocalAction {
     @Override
     public void action(Network<PingPongNode> network, PingPongNode from, PingPongNode to) {
       to.onPing(from);
     }
   }
 
-  static class Pong extends Message<PingPongNode> {
+  static class Pong extends Message<PingPongNode> implements NodeLocalAction {
     @Override
     public void action(Network<PingPongNode> network, PingPongNode from, PingPongNode to) {
       to.onPong();
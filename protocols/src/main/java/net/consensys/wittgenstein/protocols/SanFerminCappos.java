@@ -407,7 +407,7 @@ public class SanFerminCappos implements Protocol {
                 + ", lvl="
                 + this.currentPrefixLength
                 + ", sent="
-                + this.msgSent
+                + getMsgSent()
                 + " -> "
                 + s);
     }
@@ -424,14 +424,14 @@ public class SanFerminCappos implements Protocol {
           + ", sigs="
           + totalNumberOfSigs(-1)
           + ", msgReceived="
-          + msgReceived
+          + getMsgReceived()
           + ", "
           + "msgSent="
-          + msgSent
+          + getMsgSent()
           + ", KBytesSent="
-          + bytesSent / 1024
+          + getBytesSent() / 1024
           + ", KBytesReceived="
-          + bytesReceived / 1024
+          + getBytesReceived() / 1024
           + '}';
     }
   }
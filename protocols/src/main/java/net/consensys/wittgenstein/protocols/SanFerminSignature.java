@@ -471,7 +471,7 @@ public class SanFerminSignature implements Protocol {
                 + ", lvl="
                 + this.currentPrefixLength
                 + ", sent="
-                + this.msgSent
+                + getMsgSent()
                 + " -> "
                 + s);
     }
@@ -488,17 +488,17 @@ public class SanFerminSignature implements Protocol {
           + ", sigs="
           + aggValue
           + ", msgReceived="
-          + msgReceived
+          + getMsgReceived()
           + ", msgSent="
-          + msgSent
+          + getMsgSent()
           + ", sentRequests="
           + sentRequests
           + ", receivedRequests="
           + receivedRequests
           + ", KBytesSent="
-          + bytesSent / 1024
+          + getBytesSent() / 1024
           + ", KBytesReceived="
-          + bytesReceived / 1024
+          + getBytesReceived() / 1024
           + '}';
     }
 
@@ -191,13 +191,13 @@ public class Slush implements Protocol {
           + ", doneAt="
           + doneAt
           + ", msgReceived="
-          + msgReceived
+          + getMsgReceived()
           + ", msgSent="
-          + msgSent
+          + getMsgSent()
           + ", KBytesSent="
-          + bytesSent / 1024
+          + getBytesSent() / 1024
           + ", KBytesReceived="
-          + bytesReceived / 1024
+          + getBytesReceived() / 1024
           + '}';
     }
   }
@@ -3,10 +3,15 @@ package net.consensys.wittgenstein.protocols.handeleth2;
 import java.util.Collections;
 import java.util.List;
 import net.consensys.wittgenstein.core.Network;
+import net.consensys.wittgenstein.core.NodeLocalAction;
 import net.consensys.wittgenstein.core.messages.Message;
 
-/** The only message exchanged by the aggregating participants. */
-class SendAggregation extends Message<HNode> {
+/**
+ * The only message exchanged by the aggregating participants. It only changes the aggregation
+ * process of the receiver (the attestations are never modified once sent), so the deliveries of a
+ * dissemination round can be executed in parallel.
+ */
+class SendAggregation extends Message<HNode> implements NodeLocalAction {
 
   /**
    * The height: as we can run multiple aggregations for multiple heights in parallel, this allows
@@ -34,4 +34,23 @@ public class PingPongTest {
       Assert.assertEquals(n1.pong, n2.pong);
     }
   }
+
+  @Test
+  public void testParallel() {
+    PingPong p1 = new PingPong(new PingPong.PingPongParameters());
+    PingPong p2 = p1.copy();
+    p1.init();
+    p1.network().runMs(200);
+    p2.init();
+    p2.network().setBatchParallelism(4);
+    p2.network().runMs(200);
+    p2.network().setBatchParallelism(1);
+
+    Assert.assertEquals(p1.network().rd.nextInt(), p2.network().rd.nextInt());
+    for (PingPong.PingPongNode n1 : p1.network().allNodes) {
+      PingPong.PingPongNode n2 = p2.network().getNodeById(n1.nodeId);
+      Assert.assertEquals(n1.pong, n2.pong);
+      Assert.assertEquals(n1.getMsgReceived(), n2.getMsgReceived());
+    }
+  }
 }
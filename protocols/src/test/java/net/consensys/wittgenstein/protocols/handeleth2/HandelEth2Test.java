@@ -187,4 +187,33 @@ public class HandelEth2Test {
     // We should not have attestations from dead nodes.
     Assert.assertFalse(allAttestations.intersects(p.network().getDeadNodes()));
   }
+
+  @Test
+  public void testParallel() {
+    HandelEth2Parameters params = new HandelEth2Parameters(512, 3, 100, 40, 8, null, null, 0);
+    HandelEth2 p1 = new HandelEth2(params);
+    HandelEth2 p2 = p1.copy();
+    p1.init();
+    p1.network().runMs(HandelEth2Parameters.PERIOD_TIME + 1000);
+    p2.init();
+    p2.network().setBatchParallelism(4);
+    p2.network().runMs(HandelEth2Parameters.PERIOD_TIME + 1000);
+    p2.network().setBatchParallelism(1);
+
+    Assert.assertEquals(p1.network().rd.nextInt(), p2.network().rd.nextInt());
+    for (HNode n1 : p1.network().allNodes) {
+      HNode n2 = p2.network().getNodeById(n1.nodeId);
+      Assert.assertEquals(n1.height, n2.height);
+      Assert.assertEquals(n1.curWindowsSize, n2.curWindowsSize);
+      Assert.assertEquals(n1.runningAggs.keySet(), n2.runningAggs.keySet());
+      for (HNode.AggregationProcess ap1 : n1.runningAggs.values()) {
+        HNode.AggregationProcess ap2 = n2.runningAggs.get(ap1.height);
+        Assert.assertEquals(ap1.getBestResultSize(), ap2.getBestResultSize());
+        Assert.assertEquals(ap1.finishedPeers, ap2.finishedPeers);
+      }
+      Assert.assertEquals(n1.getMsgReceived(), n2.getMsgReceived());
+      Assert.assertEquals(n1.getMsgSent(), n2.getMsgSent());
+      Assert.assertEquals(n1.getBytesSent(), n2.getBytesSent());
+    }
+  }
 }